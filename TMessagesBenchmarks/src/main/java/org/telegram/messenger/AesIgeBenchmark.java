@@ -0,0 +1,69 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java AES-IGE throughput. The native implementation can only be measured on a device,
+ * see Utilities.selectAesImplementation, AesIgeCheck checks the results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AesIgeBenchmark {
+
+    @Param({"256", "4096", "131072"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private ByteBuffer buffer;
+    private byte[] key = new byte[32];
+    private byte[] iv = new byte[32];
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        Random random = new Random(3);
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        AesIge.aesIgeEncryption(buffer, key, iv, true, false, 0, size);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer decrypt() {
+        AesIge.aesIgeEncryption(buffer, key, iv, false, false, 0, size);
+        return buffer;
+    }
+}
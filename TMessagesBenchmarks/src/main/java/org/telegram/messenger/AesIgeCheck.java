@@ -0,0 +1,124 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the java AES-IGE against the OpenSSL IGE test vectors, then runs random data through
+ * it in one call and in chained calls on heap and direct buffers, both directions, and compares
+ * the results and the ivs. Run with
+ *
+ *   ./gradlew :TMessagesBenchmarks:aesIgeCheck -PaesArgs="[iterations] [seed]"
+ */
+public class AesIgeCheck {
+
+    //key, iv, plaintext, ciphertext from OpenSSL's igetest
+    private static final String[][] vectors = new String[][] {
+            {"000102030405060708090A0B0C0D0E0F",
+                    "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F",
+                    "0000000000000000000000000000000000000000000000000000000000000000",
+                    "1A8519A6557BE652E9DA8E43DA4EF4453CF456B4CA488AA383C79C98B34797CB"},
+            {"5468697320697320616E20696D706C65",
+                    "6D656E746174696F6E206F6620494745206D6F646520666F72204F70656E5353",
+                    "99706487A1CDE613BC6DE0B6F24B1C7AA448C8B9C3403E3467A8CAD89340F53B",
+                    "4C2E204C6574277320686F70652042656E20676F74206974207269676874210A"}
+    };
+
+    private static byte[] fromHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = (byte) Integer.parseInt(hex.substring(a * 2, a * 2 + 2), 16);
+        }
+        return result;
+    }
+
+    private static void checkVectors() {
+        for (int a = 0; a < vectors.length; a++) {
+            byte[] key = fromHex(vectors[a][0]);
+            byte[] plain = fromHex(vectors[a][2]);
+            byte[] cipher = fromHex(vectors[a][3]);
+            ByteBuffer buffer = ByteBuffer.wrap(plain.clone());
+            AesIge.aesIgeEncryption(buffer, key, fromHex(vectors[a][1]), true, false, 0, plain.length);
+            if (!Arrays.equals(buffer.array(), cipher)) {
+                throw new IllegalStateException("test vector " + a + " encrypted wrong");
+            }
+            AesIge.aesIgeEncryption(buffer, key, fromHex(vectors[a][1]), false, false, 0, plain.length);
+            if (!Arrays.equals(buffer.array(), plain)) {
+                throw new IllegalStateException("test vector " + a + " decrypted wrong");
+            }
+        }
+    }
+
+    private static ByteBuffer wrap(byte[] data, int offset, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(offset + data.length) : ByteBuffer.allocate(offset + data.length);
+        buffer.position(offset);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static byte[] contents(ByteBuffer buffer, int offset, int length) {
+        byte[] result = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(result);
+        return result;
+    }
+
+    /**
+     * Encrypts or decrypts the data in one call on a heap buffer and in random chained pieces on
+     * a buffer of the given kind, the results and the final ivs have to be the same.
+     */
+    private static byte[] checkChained(Random random, byte[] key, byte[] iv, byte[] data, boolean encrypt, boolean direct) {
+        int offset = 16 * random.nextInt(4);
+        ByteBuffer whole = wrap(data, offset, false);
+        byte[] wholeIv = iv.clone();
+        AesIge.aesIgeEncryption(whole, key, wholeIv, encrypt, true, offset, data.length);
+
+        ByteBuffer pieces = wrap(data, offset, direct);
+        byte[] piecesIv = iv.clone();
+        int done = 0;
+        while (done < data.length) {
+            int count = Math.min(data.length - done, 16 * (1 + random.nextInt(2048)));
+            AesIge.aesIgeEncryption(pieces, key, piecesIv, encrypt, true, offset + done, count);
+            done += count;
+        }
+        byte[] result = contents(whole, offset, data.length);
+        if (!Arrays.equals(result, contents(pieces, offset, data.length)) || !Arrays.equals(wholeIv, piecesIv)) {
+            throw new IllegalStateException("chained " + (direct ? "direct" : "heap") + " " + (encrypt ? "encryption" : "decryption") + " of " + data.length + " bytes differs");
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        checkVectors();
+        Random random = new Random(seed);
+        int[] sizes = new int[] {16, 48, 1024, 16 * 1024 + 32, 128 * 1024};
+        byte[] key = new byte[32];
+        byte[] iv = new byte[32];
+        for (int a = 0; a < iterations; a++) {
+            random.nextBytes(key);
+            random.nextBytes(iv);
+            byte[] data = new byte[sizes[random.nextInt(sizes.length)]];
+            random.nextBytes(data);
+            boolean direct = random.nextBoolean();
+            byte[] encrypted = checkChained(random, key, iv, data, true, direct);
+            byte[] decrypted = checkChained(random, key, iv, encrypted, false, direct);
+            if (!Arrays.equals(data, decrypted)) {
+                throw new IllegalStateException("iteration " + a + " with seed " + seed + " didn't decrypt back");
+            }
+        }
+        System.out.println("test vectors and " + iterations + " chained round trips correct, seed " + seed);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.util.Random;
+
+/**
+ * Builds server responses the way they come off the wire. Messages are written by hand because
+ * TL_message.serializeToStream also stores the local attachPath, which the server never sends.
+ */
+public class BenchmarkPayloads {
+
+    public static void init() {
+        BuildVars.DEBUG_VERSION = false;
+    }
+
+    public static byte[] messagesMessages(int messagesCount, int usersCount, int textLength) {
+        Random random = new Random(messagesCount);
+        SerializedData data = new SerializedData(messagesCount * (textLength + 64) + usersCount * 96);
+        data.writeInt32(TLRPC.TL_messages_messages.constructor);
+        writeMessages(data, random, messagesCount, textLength);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(0);
+        writeUsers(data, random, usersCount);
+        return data.toByteArray();
+    }
+
+    public static byte[] updatesDifference(int messagesCount, int updatesCount, int usersCount, int textLength) {
+        Random random = new Random(messagesCount + updatesCount);
+        SerializedData data = new SerializedData(messagesCount * (textLength + 64) + updatesCount * 16 + usersCount * 96);
+        data.writeInt32(TLRPC.TL_updates_difference.constructor);
+        writeMessages(data, random, messagesCount, textLength);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(0);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(updatesCount);
+        for (int a = 0; a < updatesCount; a++) {
+            data.writeInt32(TLRPC.TL_updateUserStatus.constructor);
+            data.writeInt32(random.nextInt(1000000));
+            data.writeInt32(TLRPC.TL_userStatusOnline.constructor);
+            data.writeInt32(random.nextInt());
+        }
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(0);
+        writeUsers(data, random, usersCount);
+        data.writeInt32(TLRPC.TL_updates_state.constructor);
+        for (int a = 0; a < 5; a++) {
+            data.writeInt32(random.nextInt(100000));
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * A page of messages.dialogs with consistent ids: dialog offset + a is a chat with user
+     * 1000 + offset + a whose top message has id offset + a + 1.
+     */
+    public static byte[] messagesDialogs(int offset, int count, int textLength) {
+        Random random = new Random(offset);
+        SerializedData data = new SerializedData(count * (textLength + 160));
+        data.writeInt32(TLRPC.TL_messages_dialogs.constructor);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(TLRPC.TL_dialog.constructor);
+            data.writeInt32(TLRPC.TL_peerUser.constructor);
+            data.writeInt32(1000 + offset + a);
+            data.writeInt32(offset + a + 1);
+            data.writeInt32(random.nextInt(5));
+            data.writeInt32(TLRPC.TL_peerNotifySettingsEmpty.constructor);
+        }
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(TLRPC.TL_message.constructor);
+            data.writeInt32(offset + a + 1);
+            data.writeInt32(1000 + offset + a);
+            data.writeInt32(TLRPC.TL_peerUser.constructor);
+            data.writeInt32(1000 + offset + a);
+            data.writeBool(false);
+            data.writeBool(random.nextBoolean());
+            data.writeInt32(1400000000 - offset - a);
+            data.writeString(text(random, textLength));
+            data.writeInt32(TLRPC.TL_messageMediaEmpty.constructor);
+        }
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(0);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(TLRPC.TL_userContact.constructor);
+            data.writeInt32(1000 + offset + a);
+            data.writeString(text(random, 8));
+            data.writeString(text(random, 10));
+            data.writeInt64(random.nextLong());
+            data.writeString("7" + (1000000000L + random.nextInt(900000000)));
+            data.writeInt32(TLRPC.TL_userProfilePhotoEmpty.constructor);
+            data.writeInt32(TLRPC.TL_userStatusEmpty.constructor);
+        }
+        return data.toByteArray();
+    }
+
+    public static String text(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int a = 0; a < length; a++) {
+            if (a % 7 == 6) {
+                builder.append(' ');
+            } else if (a % 31 == 30) {
+                builder.append('ж');
+            } else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void writeMessages(SerializedData data, Random random, int count, int textLength) {
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(TLRPC.TL_message.constructor);
+            data.writeInt32(a + 1);
+            data.writeInt32(random.nextInt(1000000));
+            data.writeInt32(TLRPC.TL_peerUser.constructor);
+            data.writeInt32(random.nextInt(1000000));
+            data.writeBool(random.nextBoolean());
+            data.writeBool(random.nextBoolean());
+            data.writeInt32(1400000000 + a);
+            data.writeString(text(random, textLength));
+            data.writeInt32(TLRPC.TL_messageMediaEmpty.constructor);
+        }
+    }
+
+    private static void writeUsers(SerializedData data, Random random, int count) {
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(TLRPC.TL_userContact.constructor);
+            data.writeInt32(random.nextInt(1000000));
+            data.writeString(text(random, 8));
+            data.writeString(text(random, 10));
+            data.writeInt64(random.nextLong());
+            data.writeString("7" + (1000000000L + random.nextInt(900000000)));
+            data.writeInt32(TLRPC.TL_userProfilePhotoEmpty.constructor);
+            data.writeInt32(TLRPC.TL_userStatusEmpty.constructor);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkout and return of pooled buffers from several threads at once. Run with
+ * -t 1 and -t 8 to compare the uncontended and contended cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BuffersStorageBenchmark {
+
+    @Param({"128", "4296", "40000"})
+    public int size;
+
+    private BuffersStorage storage;
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        storage = new BuffersStorage(true);
+    }
+
+    @Benchmark
+    public ByteBufferDesc getAndReuse() {
+        ByteBufferDesc buffer = storage.getFreeBuffer(size);
+        storage.reuseFreeBuffer(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public int holdTwo() {
+        ByteBufferDesc first = storage.getFreeBuffer(size);
+        ByteBufferDesc second = storage.getFreeBuffer(size);
+        int result = first.limit() + second.limit();
+        storage.reuseFreeBuffer(second);
+        storage.reuseFreeBuffer(first);
+        return result;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outgoing half of createConnectionData: ConnectionsManager.writeEncryptedMessages packs the
+ * queued requests into a container, writes it with the message key and padding into a pooled
+ * buffer and encrypts it, with the java AES-IGE through the Utilities stub of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionDataBenchmark {
+
+    @Param({"1", "8"})
+    public int messagesCount;
+
+    private byte[] authKey;
+    private long authKeyId;
+    private ArrayList<TLRPC.TL_protoMessage> messages;
+    private ArrayList<Integer> quickAckId = new ArrayList<Integer>();
+    private MessageKeyData keyData = new MessageKeyData();
+    private Random random = new Random(2);
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        authKey = new byte[256];
+        random.nextBytes(authKey);
+        authKeyId = random.nextLong();
+        messages = new ArrayList<TLRPC.TL_protoMessage>();
+        for (int a = 0; a < messagesCount; a++) {
+            TLRPC.TL_messages_sendMessage request = new TLRPC.TL_messages_sendMessage();
+            TLRPC.TL_inputPeerContact peer = new TLRPC.TL_inputPeerContact();
+            peer.user_id = random.nextInt(1000000);
+            request.peer = peer;
+            request.message = BenchmarkPayloads.text(random, 120);
+            request.random_id = random.nextLong();
+
+            TLRPC.TL_protoMessage message = new TLRPC.TL_protoMessage();
+            message.msg_id = random.nextLong();
+            message.seqno = a * 2 + 1;
+            message.body = request;
+            ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+            request.serializeToStream(sizeBuffer);
+            message.bytes = sizeBuffer.length();
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public int createConnectionData() {
+        quickAckId.clear();
+        ByteBufferDesc data = ConnectionsManager.writeEncryptedMessages(messages, false, 5, 6, authKey, authKeyId, 1, 2, quickAckId, keyData, random);
+        int result = data.limit() + keyData.aesKey[0];
+        BuffersStorage.getInstance().reuseFreeBuffer(data);
+        return result;
+    }
+}
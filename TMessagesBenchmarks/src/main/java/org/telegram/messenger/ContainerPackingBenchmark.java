@@ -0,0 +1,105 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of small requests cut into containers the way sendMessagesToTransport does, each
+ * container written and encrypted by ConnectionsManager.writeEncryptedMessages. containerLimit 3072 is the old
+ * fixed limit, the larger ones what ContainerPacker picks on a fast connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContainerPackingBenchmark {
+
+    @Param({"3072", "32768", "277976"})
+    public int containerLimit;
+
+    @Param({"256"})
+    public int messagesCount;
+
+    private byte[] authKey;
+    private long authKeyId;
+    private ArrayList<TLRPC.TL_protoMessage> messages;
+    private ArrayList<Integer> quickAckId = new ArrayList<Integer>();
+    private MessageKeyData keyData = new MessageKeyData();
+    private Random random = new Random(3);
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        authKey = new byte[256];
+        random.nextBytes(authKey);
+        authKeyId = random.nextLong();
+        messages = new ArrayList<TLRPC.TL_protoMessage>();
+        for (int a = 0; a < messagesCount; a++) {
+            TLRPC.TL_messages_sendMessage request = new TLRPC.TL_messages_sendMessage();
+            TLRPC.TL_inputPeerContact peer = new TLRPC.TL_inputPeerContact();
+            peer.user_id = random.nextInt(1000000);
+            request.peer = peer;
+            request.message = BenchmarkPayloads.text(random, 40 + random.nextInt(400));
+            request.random_id = random.nextLong();
+
+            TLRPC.TL_protoMessage message = new TLRPC.TL_protoMessage();
+            message.msg_id = random.nextLong();
+            message.seqno = a * 2 + 1;
+            message.body = request;
+            ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+            request.serializeToStream(sizeBuffer);
+            message.bytes = sizeBuffer.length();
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public int packBurst() {
+        int result = 0;
+        ArrayList<TLRPC.TL_protoMessage> currentMessages = new ArrayList<TLRPC.TL_protoMessage>();
+        int currentSize = 0;
+        for (int a = 0; a < messages.size(); a++) {
+            TLRPC.TL_protoMessage message = messages.get(a);
+            currentMessages.add(message);
+            currentSize += message.bytes;
+            boolean last = a == messages.size() - 1;
+            if (last || currentMessages.size() >= ContainerPacker.MAX_CONTAINER_MESSAGES || currentSize + messages.get(a + 1).bytes > containerLimit) {
+                result += writeContainer(currentMessages);
+                currentMessages.clear();
+                currentSize = 0;
+            }
+        }
+        return result;
+    }
+
+    private int writeContainer(ArrayList<TLRPC.TL_protoMessage> containerMessages) {
+        quickAckId.clear();
+        ByteBufferDesc data = ConnectionsManager.writeEncryptedMessages(containerMessages, false, 5, 6, authKey, authKeyId, 1, 2, quickAckId, keyData, random);
+        int result = data.limit() + keyData.aesKey[0];
+        BuffersStorage.getInstance().reuseFreeBuffer(data);
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the same abridged stream through AbridgedFrameDecoder and the old readData logic in
+ * socket sized chunks. Both copy every packet once more into a pooled buffer like TcpConnection
+ * does before handing it to the stage queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    @Param({"2048", "300000"})
+    public int maxPacketLength;
+
+    @Param({"1500", "65536"})
+    public int chunkSize;
+
+    private ByteBuffer[] chunks;
+    private AbridgedFrameDecoder decoder;
+    private LegacyFrameReader legacyReader;
+    private int frames;
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        Random random = new Random(4);
+        FrameDecoderFuzz.Stream stream = FrameDecoderFuzz.randomStream(random, 200, maxPacketLength);
+        int count = (stream.data.length + chunkSize - 1) / chunkSize;
+        chunks = new ByteBuffer[count];
+        for (int a = 0; a < count; a++) {
+            int length = Math.min(chunkSize, stream.data.length - a * chunkSize);
+            chunks[a] = ByteBuffer.allocateDirect(length);
+            chunks[a].put(stream.data, a * chunkSize, length);
+        }
+        AbridgedFrameDecoder.FrameListener listener = new AbridgedFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, int length) {
+                ByteBufferDesc copy = BuffersStorage.getInstance().getFreeBuffer(length);
+                copy.buffer.put(frame);
+                BuffersStorage.getInstance().reuseFreeBuffer(copy);
+                frames++;
+            }
+
+            @Override
+            public void onQuickAck(int ackId) {
+                frames++;
+            }
+        };
+        decoder = new AbridgedFrameDecoder(listener);
+        legacyReader = new LegacyFrameReader(listener);
+    }
+
+    @Benchmark
+    public int decoder() {
+        frames = 0;
+        for (ByteBuffer chunk : chunks) {
+            chunk.rewind();
+            decoder.decode(chunk);
+        }
+        return frames;
+    }
+
+    @Benchmark
+    public int legacy() {
+        frames = 0;
+        for (ByteBuffer chunk : chunks) {
+            chunk.rewind();
+            legacyReader.readData(chunk);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Randomized check of AbridgedFrameDecoder: encodes random packets and quick acks, feeds the
+ * stream in random chunks down to single bytes and compares what comes out. Run with
+ *
+ *   ./gradlew :TMessagesBenchmarks:frameDecoderFuzz -PfuzzArgs="[iterations] [seed]"
+ */
+public class FrameDecoderFuzz {
+
+    public static class Stream {
+        public byte[] data;
+        public ArrayList<Object> events = new ArrayList<Object>();
+    }
+
+    public static Stream randomStream(Random random, int count, int maxLength) {
+        Stream stream = new Stream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int a = 0; a < count; a++) {
+            if (random.nextInt(5) == 0) {
+                int ackId = random.nextInt() & 0x7fffffff;
+                int value = ackId | 0x80000000;
+                output.write(value >>> 24);
+                output.write(value >>> 16);
+                output.write(value >>> 8);
+                output.write(value);
+                stream.events.add(ackId);
+                continue;
+            }
+            int words;
+            switch (random.nextInt(4)) {
+                case 0:
+                    words = 1 + random.nextInt(0x7e);
+                    break;
+                case 1:
+                    words = 0x7e + random.nextInt(3);
+                    break;
+                default:
+                    words = 1 + random.nextInt(maxLength / 4);
+                    break;
+            }
+            byte[] frame = new byte[words * 4];
+            random.nextBytes(frame);
+            if (words < 0x7f) {
+                output.write(words);
+            } else {
+                output.write(0x7f);
+                output.write(words);
+                output.write(words >> 8);
+                output.write(words >> 16);
+            }
+            output.write(frame, 0, frame.length);
+            stream.events.add(frame);
+        }
+        stream.data = output.toByteArray();
+        return stream;
+    }
+
+    public static ArrayList<Object> decode(byte[] data, Random random, int maxChunk, boolean direct) {
+        final ArrayList<Object> events = new ArrayList<Object>();
+        AbridgedFrameDecoder decoder = new AbridgedFrameDecoder(new AbridgedFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, int length) {
+                if (frame.remaining() != length) {
+                    throw new IllegalStateException("frame has " + frame.remaining() + " bytes instead of " + length);
+                }
+                byte[] bytes = new byte[length];
+                frame.get(bytes);
+                events.add(bytes);
+            }
+
+            @Override
+            public void onQuickAck(int ackId) {
+                events.add(ackId);
+            }
+        });
+        ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(maxChunk) : ByteBuffer.allocate(maxChunk);
+        int position = 0;
+        while (position < data.length) {
+            int count = Math.min(data.length - position, 1 + random.nextInt(maxChunk));
+            chunk.clear();
+            chunk.put(data, position, count);
+            chunk.flip();
+            if (!decoder.decode(chunk)) {
+                throw new IllegalStateException("decoder rejected a valid stream");
+            }
+            if (chunk.hasRemaining()) {
+                throw new IllegalStateException("decoder left " + chunk.remaining() + " bytes");
+            }
+            position += count;
+        }
+        if (decoder.pendingBytes() != 0) {
+            throw new IllegalStateException(decoder.pendingBytes() + " bytes left pending");
+        }
+        decoder.reset();
+        return events;
+    }
+
+    public static boolean sameEvents(ArrayList<Object> expected, ArrayList<Object> actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int a = 0; a < expected.size(); a++) {
+            Object lhs = expected.get(a);
+            Object rhs = actual.get(a);
+            if (lhs instanceof byte[] ? !(rhs instanceof byte[]) || !Arrays.equals((byte[]) lhs, (byte[]) rhs) : !lhs.equals(rhs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean rejects(byte[] header) {
+        AbridgedFrameDecoder decoder = new AbridgedFrameDecoder(new AbridgedFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, int length) {
+            }
+
+            @Override
+            public void onQuickAck(int ackId) {
+            }
+        });
+        boolean result = !decoder.decode(ByteBuffer.wrap(header));
+        decoder.reset();
+        return result;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkPayloads.init();
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        int[] chunkSizes = new int[] {1, 3, 7, 64, 1500, 64 * 1024};
+        for (int a = 0; a < iterations; a++) {
+            Stream stream = randomStream(random, 1 + random.nextInt(40), random.nextBoolean() ? 2048 : 300000);
+            int maxChunk = chunkSizes[random.nextInt(chunkSizes.length)];
+            ArrayList<Object> events = decode(stream.data, random, maxChunk, random.nextBoolean());
+            if (!sameEvents(stream.events, events)) {
+                throw new IllegalStateException("iteration " + a + " with seed " + seed + " and chunks up to " + maxChunk + " decoded differently");
+            }
+        }
+        if (!rejects(new byte[] {0}) || !rejects(new byte[] {0x7f, 0, 0, 0}) || !rejects(new byte[] {0x7f, 0, 0, 0x20})) {
+            throw new IllegalStateException("invalid packet length accepted");
+        }
+        System.out.println(iterations + " streams decoded correctly, seed " + seed);
+    }
+}
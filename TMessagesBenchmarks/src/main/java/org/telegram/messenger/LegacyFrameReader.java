@@ -0,0 +1,176 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The packet reassembly TcpConnection.readData did before AbridgedFrameDecoder, kept for
+ * comparison in FrameDecoderBenchmark.
+ */
+public class LegacyFrameReader {
+
+    private final AbridgedFrameDecoder.FrameListener listener;
+    private ByteBufferDesc restOfTheData;
+    private int lastPacketLength;
+
+    public LegacyFrameReader(AbridgedFrameDecoder.FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean readData(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.rewind();
+
+        ByteBuffer parseLaterBuffer = null;
+        if (restOfTheData != null) {
+            if (lastPacketLength == 0) {
+                if (restOfTheData.capacity() - restOfTheData.position() >= buffer.limit()) {
+                    restOfTheData.limit(restOfTheData.position() + buffer.limit());
+                    restOfTheData.put(buffer);
+                    buffer = restOfTheData.buffer;
+                } else {
+                    ByteBufferDesc newBuffer = BuffersStorage.getInstance().getFreeBuffer(restOfTheData.limit() + buffer.limit());
+                    restOfTheData.rewind();
+                    newBuffer.put(restOfTheData.buffer);
+                    newBuffer.put(buffer);
+                    buffer = newBuffer.buffer;
+                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
+                    restOfTheData = newBuffer;
+                }
+            } else {
+                int len = 0;
+                if (lastPacketLength - restOfTheData.position() <= buffer.limit()) {
+                    len = lastPacketLength - restOfTheData.position();
+                } else {
+                    len = buffer.limit();
+                }
+                int oldLimit = buffer.limit();
+                buffer.limit(len);
+                restOfTheData.put(buffer);
+                buffer.limit(oldLimit);
+                if (restOfTheData.position() != lastPacketLength) {
+                    return true;
+                } else {
+                    if (buffer.hasRemaining()) {
+                        parseLaterBuffer = buffer;
+                    } else {
+                        parseLaterBuffer = null;
+                    }
+                    buffer = restOfTheData.buffer;
+                }
+            }
+        }
+
+        buffer.rewind();
+
+        while (buffer.hasRemaining()) {
+            int currentPacketLength;
+            buffer.mark();
+            byte fByte = buffer.get();
+
+            if ((fByte & (1 << 7)) != 0) {
+                buffer.reset();
+                if (buffer.remaining() < 4) {
+                    ByteBufferDesc reuseLater = restOfTheData;
+                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
+                    restOfTheData.put(buffer);
+                    restOfTheData.limit(restOfTheData.position());
+                    lastPacketLength = 0;
+                    if (reuseLater != null) {
+                        BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
+                    }
+                    break;
+                }
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                final int ackId = buffer.getInt() & (~(1 << 31));
+                listener.onQuickAck(ackId);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                continue;
+            }
+
+            if (fByte != 0x7f) {
+                currentPacketLength = ((int)fByte) * 4;
+            } else {
+                buffer.reset();
+                if (buffer.remaining() < 4) {
+                    if (restOfTheData == null || restOfTheData != null && restOfTheData.position() != 0) {
+                        ByteBufferDesc reuseLater = restOfTheData;
+                        restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
+                        restOfTheData.put(buffer);
+                        restOfTheData.limit(restOfTheData.position());
+                        lastPacketLength = 0;
+                        if (reuseLater != null) {
+                            BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
+                        }
+                    } else {
+                        restOfTheData.position(restOfTheData.limit());
+                    }
+                    break;
+                }
+                currentPacketLength = (buffer.getInt() >> 8) * 4;
+            }
+
+            if (currentPacketLength % 4 != 0 || currentPacketLength > 2 * 1024 * 1024) {
+                return false;
+            }
+
+            if (currentPacketLength > buffer.remaining()) {
+                ByteBufferDesc reuseLater = null;
+                int len = currentPacketLength + (fByte != 0x7f ? 1 : 4);
+                if (restOfTheData != null && restOfTheData.capacity() < len) {
+                    reuseLater = restOfTheData;
+                    restOfTheData = null;
+                }
+                if (restOfTheData == null) {
+                    buffer.reset();
+                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(len);
+                    restOfTheData.put(buffer);
+                } else {
+                    restOfTheData.position(restOfTheData.limit());
+                    restOfTheData.limit(len);
+                }
+                lastPacketLength = len;
+                if (reuseLater != null) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
+                }
+                return true;
+            }
+
+            final int length = currentPacketLength;
+            final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
+            int old = buffer.limit();
+            buffer.limit(buffer.position() + currentPacketLength);
+            toProceed.put(buffer);
+            buffer.limit(old);
+            toProceed.rewind();
+
+            listener.onFrame(toProceed.buffer, length);
+            BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
+
+            if (restOfTheData != null) {
+                if (lastPacketLength != 0 && restOfTheData.position() == lastPacketLength || lastPacketLength == 0 && !restOfTheData.hasRemaining()) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
+                    restOfTheData = null;
+                } else {
+                    restOfTheData.compact();
+                    restOfTheData.limit(restOfTheData.position());
+                    restOfTheData.position(0);
+                }
+            }
+
+            if (parseLaterBuffer != null) {
+                buffer = parseLaterBuffer;
+                parseLaterBuffer = null;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageKeyDataBenchmark {
+
+    private byte[] authKey;
+    private byte[] messageKey;
+    private MessageKeyData keyData = new MessageKeyData();
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        Random random = new Random(1);
+        authKey = new byte[256];
+        messageKey = new byte[16];
+        random.nextBytes(authKey);
+        random.nextBytes(messageKey);
+    }
+
+    @Benchmark
+    public MessageKeyData outgoing() {
+        return MessageKeyData.generateMessageKeyData(authKey, messageKey, false);
+    }
+
+    @Benchmark
+    public MessageKeyData incoming() {
+        return MessageKeyData.generateMessageKeyData(authKey, messageKey, true);
+    }
+
+    @Benchmark
+    public MessageKeyData reused() {
+        MessageKeyData.generateMessageKeyData(authKey, messageKey, 0, false, keyData);
+        return keyData;
+    }
+}
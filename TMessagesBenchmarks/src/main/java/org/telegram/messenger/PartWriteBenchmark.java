@@ -0,0 +1,97 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing 1 MB of downloaded parts to the temp file: "rws" syncs data and metadata on every
+ * part like FileLoadOperation used to, "checkpoint" does positional writes and one force() per
+ * MB like it does now. Run with -Djava.io.tmpdir pointing at the storage to measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartWriteBenchmark {
+
+    @Param({"rws", "checkpoint"})
+    public String mode;
+
+    @Param({"32768", "262144"})
+    public int partSize;
+
+    private static final int totalSize = 1024 * 1024;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private ByteBuffer part;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        file = File.createTempFile("part", ".tmp");
+        randomAccessFile = new RandomAccessFile(file, "rws".equals(mode) ? "rws" : "rw");
+        channel = randomAccessFile.getChannel();
+        byte[] bytes = new byte[partSize];
+        new Random(5).nextBytes(bytes);
+        part = ByteBuffer.allocateDirect(partSize);
+        part.put(bytes);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long writeParts() throws Exception {
+        boolean sequential = "rws".equals(mode);
+        if (sequential) {
+            channel.position(0);
+        }
+        for (int offset = 0; offset < totalSize; offset += partSize) {
+            part.rewind();
+            if (sequential) {
+                channel.write(part);
+            } else {
+                long position = offset;
+                while (part.hasRemaining()) {
+                    position += channel.write(part, position);
+                }
+            }
+        }
+        if (!sequential) {
+            channel.force(false);
+        }
+        return channel.size();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a batch of requests into the different streams. serializedDataNew and primitives
+ * compare SerializedData with LegacySerializedData, the DataOutputStream based one it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @State(Scope.Thread)
+    public static class Implementation {
+        @Param({"legacy", "current"})
+        public String serializedData;
+
+        boolean legacy;
+
+        @Setup
+        public void setup() {
+            legacy = "legacy".equals(serializedData);
+        }
+
+        AbsSerializedData create() {
+            return legacy ? new LegacySerializedData() : new SerializedData();
+        }
+
+        byte[] toByteArray(AbsSerializedData data) {
+            return legacy ? ((LegacySerializedData)data).toByteArray() : ((SerializedData)data).toByteArray();
+        }
+    }
+
+    @Param({"20", "100"})
+    public int messagesCount;
+
+    private TLRPC.TL_messages_sendMessage[] requests;
+    private int length;
+    private SerializedData reusedData;
+    private ByteBufferDesc reusedBuffer;
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        Random random = new Random(messagesCount);
+        requests = new TLRPC.TL_messages_sendMessage[messagesCount];
+        for (int a = 0; a < messagesCount; a++) {
+            TLRPC.TL_messages_sendMessage request = new TLRPC.TL_messages_sendMessage();
+            TLRPC.TL_inputPeerContact peer = new TLRPC.TL_inputPeerContact();
+            peer.user_id = random.nextInt(1000000);
+            request.peer = peer;
+            request.message = BenchmarkPayloads.text(random, 120);
+            request.random_id = random.nextLong();
+            requests[a] = request;
+        }
+        length = write(new ByteBufferDesc(true));
+        reusedData = new SerializedData(length);
+        reusedBuffer = new ByteBufferDesc(length);
+    }
+
+    private int write(AbsSerializedData stream) {
+        for (TLRPC.TL_messages_sendMessage request : requests) {
+            request.serializeToStream(stream);
+        }
+        return stream.length();
+    }
+
+    @Benchmark
+    public byte[] serializedDataNew(Implementation implementation) {
+        AbsSerializedData data = implementation.create();
+        write(data);
+        return implementation.toByteArray(data);
+    }
+
+    @Benchmark
+    public byte[] primitives(Implementation implementation) {
+        AbsSerializedData data = implementation.create();
+        for (int a = 0; a < 256; a++) {
+            data.writeInt32(a);
+            data.writeInt64(a * 31L);
+        }
+        return implementation.toByteArray(data);
+    }
+
+    @Benchmark
+    public int serializedDataReused() {
+        reusedData.reset();
+        return write(reusedData);
+    }
+
+    @Benchmark
+    public int byteBufferDescReused() {
+        reusedBuffer.rewind();
+        reusedBuffer.limit(length);
+        return write(reusedBuffer);
+    }
+
+    @Benchmark
+    public int byteBufferDescPooled() {
+        ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(length);
+        int result = write(buffer);
+        BuffersStorage.getInstance().reuseFreeBuffer(buffer);
+        return result;
+    }
+
+    @Benchmark
+    public int calculateLength() {
+        return write(new ByteBufferDesc(true));
+    }
+}
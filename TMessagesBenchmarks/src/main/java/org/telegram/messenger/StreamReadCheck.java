@@ -0,0 +1,200 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Streams a file while a writer thread downloads it out of order the way a journaled
+ * FileLoadOperation does: parts go into the temp file, into a DownloadJournal and wake the
+ * readers through DownloadStreamSync, and a waiting reader moves the writer to its offset.
+ * Readers at random positions check every byte, closed readers must not keep parts wanted,
+ * and a reader waiting on a stopped download has to fail. Run with
+ *
+ *   ./gradlew :TMessagesBenchmarks:streamReadCheck -PstreamArgs="[rounds] [seed]"
+ */
+public class StreamReadCheck {
+
+    private static final int partSize = 1024 * 32;
+
+    private static byte expected(long position) {
+        return (byte)(position * 31 + (position >>> 11));
+    }
+
+    private static class Download implements DownloadStreamSync.StreamSyncDelegate {
+        final int totalBytesCount;
+        final DownloadJournal journal;
+        final RandomAccessFile file;
+        final DownloadStreamSync streamSync = new DownloadStreamSync(this);
+        final Random random;
+        volatile int nextOffset = 0;
+        volatile boolean stopped;
+        volatile int jumps;
+
+        Download(File tempFile, File journalFile, int totalBytesCount, Random random) throws Exception {
+            this.totalBytesCount = totalBytesCount;
+            this.random = random;
+            file = new RandomAccessFile(tempFile, "rw");
+            file.setLength(totalBytesCount);
+            journal = new DownloadJournal(journalFile);
+            journal.create();
+        }
+
+        @Override
+        public boolean isRangeDownloaded(int offset, int length) {
+            if (offset + length > totalBytesCount) {
+                length = totalBytesCount - offset;
+            }
+            return length <= 0 || journal.isRangeCompleted(offset, length);
+        }
+
+        @Override
+        public void didReaderWait(int offset) {
+            jumps++;
+            nextOffset = offset / partSize * partSize;
+        }
+
+        void run() throws Exception {
+            byte[] data = new byte[partSize];
+            while (!stopped && journal.getCompletedBytes() < totalBytesCount) {
+                int offset = journal.getNextMissingOffset(nextOffset);
+                if (offset >= totalBytesCount) {
+                    offset = journal.getNextMissingOffset(0);
+                }
+                int length = Math.min(partSize, totalBytesCount - offset);
+                for (int a = 0; a < length; a++) {
+                    data[a] = expected(offset + a);
+                }
+                file.getChannel().write(ByteBuffer.wrap(data, 0, length), offset);
+                journal.add(offset, length);
+                journal.flush();
+                nextOffset = offset + length;
+                streamSync.notifyReaders();
+                Thread.sleep(random.nextInt(3));
+            }
+            file.close();
+        }
+    }
+
+    private static void readRandomly(FileStreamReader reader, Random random, int totalBytesCount, int reads) throws Exception {
+        byte[] buffer = new byte[64 * 1024];
+        for (int a = 0; a < reads; a++) {
+            long position = random.nextInt(totalBytesCount);
+            int length = 1 + random.nextInt(buffer.length);
+            int read = reader.read(position, buffer, 0, length);
+            if (read <= 0 || read > length || position + read > totalBytesCount) {
+                throw new IllegalStateException("read " + read + " at " + position + " of " + length);
+            }
+            for (int b = 0; b < read; b++) {
+                if (buffer[b] != expected(position + b)) {
+                    throw new IllegalStateException("wrong byte at " + (position + b));
+                }
+            }
+        }
+    }
+
+    private static void checkRound(File dir, final Random random) throws Exception {
+        final int totalBytesCount = (64 + random.nextInt(64)) * partSize + random.nextInt(partSize);
+        File tempFile = new File(dir, "stream.temp");
+        File journalFile = new File(dir, "stream.pt");
+        final Download download = new Download(tempFile, journalFile, totalBytesCount, new Random(random.nextLong()));
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download.run();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        writer.start();
+
+        Thread[] readers = new Thread[2];
+        final FileStreamReader[] streams = new FileStreamReader[readers.length];
+        for (int a = 0; a < readers.length; a++) {
+            final FileStreamReader stream = new FileStreamReader(tempFile, download.streamSync);
+            final Random readerRandom = new Random(random.nextLong());
+            streams[a] = stream;
+            readers[a] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readRandomly(stream, readerRandom, totalBytesCount, 16);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            readers[a].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        for (FileStreamReader stream : streams) {
+            stream.close();
+        }
+        if (download.streamSync.isReadAhead(0, totalBytesCount)) {
+            throw new IllegalStateException("closed readers still want parts");
+        }
+        writer.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        if (download.jumps == 0) {
+            throw new IllegalStateException("no reader had to wait");
+        }
+
+        DownloadJournal loaded = new DownloadJournal(journalFile);
+        loaded.load(tempFile.length());
+        if (loaded.getCompletedBytes() != totalBytesCount) {
+            throw new IllegalStateException("journal has " + loaded.getCompletedBytes() + " of " + totalBytesCount);
+        }
+        download.journal.delete();
+        tempFile.delete();
+    }
+
+    private static void checkStopped(File dir) throws Exception {
+        File tempFile = new File(dir, "stopped.temp");
+        Download download = new Download(tempFile, new File(dir, "stopped.pt"), 4 * partSize, new Random(1));
+        FileStreamReader stream = new FileStreamReader(tempFile, download.streamSync);
+        download.streamSync.stop();
+        try {
+            stream.read(partSize, new byte[16], 0, 16);
+            throw new IllegalStateException("read from a stopped download");
+        } catch (IOException e) {
+            //download stopped
+        }
+        stream.close();
+        download.file.close();
+        download.journal.delete();
+        tempFile.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "stream-read-check-" + seed);
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can't create " + dir);
+        }
+        Random random = new Random(seed);
+        for (int a = 0; a < rounds; a++) {
+            checkRound(dir, random);
+        }
+        checkStopped(dir);
+        dir.delete();
+        System.out.println(rounds + " streamed downloads read correctly, seed " + seed);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TLDeserializeBenchmark {
+
+    @Param({"20", "100"})
+    public int messagesCount;
+
+    private ByteBufferDesc messages;
+    private ByteBufferDesc difference;
+
+    @Setup
+    public void setup() {
+        BenchmarkPayloads.init();
+        messages = new ByteBufferDesc(BenchmarkPayloads.messagesMessages(messagesCount, 20, 120));
+        difference = new ByteBufferDesc(BenchmarkPayloads.updatesDifference(messagesCount, messagesCount, 20, 120));
+    }
+
+    @Benchmark
+    public TLObject messagesMessages() {
+        messages.rewind();
+        return TLClassStore.Instance().TLdeserialize(messages, messages.readInt32());
+    }
+
+    @Benchmark
+    public TLObject updatesDifference() {
+        difference.rewind();
+        return TLClassStore.Instance().TLdeserialize(difference, difference.readInt32());
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MTProto stand-in for load and latency tests of the networking stack. It speaks the abridged
+ * TCP transport, performs the auth key handshake with its own RSA key and answers a small set of
+ * RPCs with synthetic data. Latency, bandwidth limits, split writes and dropped connections can be
+ * injected on the way back to the client.
+ *
+ *   ./gradlew :TMessagesBenchmarks:testServer -PserverArgs="-port 4430 -latency 150 -split 64"
+ *
+ * To use it, set BuildVars.TEST_SERVER_ADDRESS, TEST_SERVER_PORT and TEST_SERVER_PUBLIC_KEY to
+ * the values printed on startup and install the app with clean data. The RSA key is kept in
+ * the -key file so one client build keeps working across server restarts.
+ */
+public class TestServer {
+
+    public static final String RPC_GET_CONFIG = "getConfig";
+    public static final String RPC_GET_DIALOGS = "getDialogs";
+    public static final String RPC_GET_FILE = "getFile";
+    public static final String RPC_SAVE_FILE_PART = "saveFilePart";
+
+    // Known good 2048 bit safe prime, the same one the production servers hand out.
+    static final BigInteger DH_PRIME = new BigInteger("C71CAEB9C6B1C9048E6C522F70F13F73980D40238E3E21C14934D037563D930F48198A0AA7C14058229493D22530F4DBFA336F6E0AC925139543AED44CCE7C3720FD51F69458705AC68CD4FE6B6B13ABDC9746512969328454F18FAF8C595F642477FE96BB2A941D5BCD1D4AC8CC49880708FA9B378E3C4F3A9060BEE67CF9A4A4A695811051907E162753B56B0F6B410DBA74D8A84B2A14B3144E0EF1284754FD17ED950D5965B4B9DD46582DB1178D169C6BC465B0D6FF9CA3928FEF5B9AE4E418FC15E83EBEA0F87FA9FF5EED70050DED2849F47BF959D956850CE929851F0D8115F635B105EE2E4E15D04B2454BF6F4FADF034B10403119CD8E3B92FCC5B", 16);
+    static final int DH_G = 3;
+
+    public static class Options {
+        public int port = 4430;
+        public String advertiseAddress;
+        public String keyFile = "testserver.key";
+        public HashSet<String> rpcs = new HashSet<String>();
+        public int dialogsCount = 100;
+        public int fileSize = 10 * 1024 * 1024;
+
+        public int latency;
+        public int jitter;
+        public int bandwidth;
+        public int splitSize;
+        public int splitDelay;
+        public double dropRate;
+        public int maxConnectionTime;
+        public long seed = System.nanoTime();
+        public int statsInterval = 10;
+
+        public Options() {
+            rpcs.add(RPC_GET_CONFIG);
+            rpcs.add(RPC_GET_DIALOGS);
+            rpcs.add(RPC_GET_FILE);
+            rpcs.add(RPC_SAVE_FILE_PART);
+        }
+    }
+
+    /**
+     * State of one client session. Message ids and seqno have to grow across reconnects of the
+     * same session, so they live here rather than in the connection.
+     */
+    static class Session {
+        public long sessionId;
+        public long uniqueId;
+        public long serverSalt;
+        public boolean announced;
+        private long lastMessageId;
+        private int seqNo;
+
+        public synchronized long generateMessageId(boolean response) {
+            long messageId = (long) ((((double) System.currentTimeMillis()) * 4294967296.0) / 1000.0);
+            if (messageId <= lastMessageId) {
+                messageId = lastMessageId + 1;
+            }
+            while (messageId % 4 != (response ? 1 : 3)) {
+                messageId++;
+            }
+            lastMessageId = messageId;
+            return messageId;
+        }
+
+        public synchronized int generateSeqNo(boolean contentRelated) {
+            int value = seqNo * 2 + (contentRelated ? 1 : 0);
+            if (contentRelated) {
+                seqNo++;
+            }
+            return value;
+        }
+    }
+
+    static class HandshakeState {
+        public byte[] nonce;
+        public byte[] serverNonce;
+        public byte[] newNonce;
+        public BigInteger pq;
+        public BigInteger a;
+    }
+
+    final Options options;
+    final BigInteger rsaModulus;
+    final BigInteger rsaPrivateExponent;
+    final long rsaFingerprint;
+    final SecureRandom random = new SecureRandom();
+
+    final ConcurrentHashMap<Long, byte[]> authKeys = new ConcurrentHashMap<Long, byte[]>();
+    final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+    final ConcurrentHashMap<BigInteger, HandshakeState> handshakes = new ConcurrentHashMap<BigInteger, HandshakeState>();
+
+    final AtomicLong connectionsCount = new AtomicLong();
+    final AtomicLong handshakesCount = new AtomicLong();
+    final AtomicLong rpcCount = new AtomicLong();
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong fileBytesSent = new AtomicLong();
+    final AtomicLong fileBytesReceived = new AtomicLong();
+
+    private ServerSocket serverSocket;
+
+    public TestServer(Options options) throws Exception {
+        this.options = options;
+        File file = new File(options.keyFile);
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            rsaModulus = new BigInteger(reader.readLine().trim(), 16);
+            rsaPrivateExponent = new BigInteger(reader.readLine().trim(), 16);
+            reader.close();
+        } else {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, random);
+            RSAPrivateKey key = (RSAPrivateKey) generator.generateKeyPair().getPrivate();
+            rsaModulus = key.getModulus();
+            rsaPrivateExponent = key.getPrivateExponent();
+            FileWriter writer = new FileWriter(file);
+            writer.write(rsaModulus.toString(16) + "\n" + rsaPrivateExponent.toString(16) + "\n");
+            writer.close();
+        }
+        rsaFingerprint = computeFingerprint(rsaModulus, BigInteger.valueOf(65537));
+    }
+
+    public void start() throws Exception {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(options.port));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connectionsCount.incrementAndGet();
+                        new TestServerConnection(TestServer.this, socket).start();
+                    } catch (Exception e) {
+                        if (!serverSocket.isClosed()) {
+                            FileLog.e("tmessages", e);
+                        }
+                    }
+                }
+            }
+        }, "test server accept");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getPublicKey() {
+        return rsaModulus.toString(16);
+    }
+
+    public String statsLine() {
+        return String.format(Locale.US, "connections %d, handshakes %d, rpcs %d, dropped %d, in %d KB, out %d KB, file out %d KB, file in %d KB",
+                connectionsCount.get(), handshakesCount.get(), rpcCount.get(), droppedCount.get(),
+                bytesReceived.get() / 1024, bytesSent.get() / 1024, fileBytesSent.get() / 1024, fileBytesReceived.get() / 1024);
+    }
+
+    Session getSession(long sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            session = new Session();
+            session.sessionId = sessionId;
+            session.uniqueId = random.nextLong();
+            session.serverSalt = random.nextLong();
+            Session existing = sessions.putIfAbsent(sessionId, session);
+            if (existing != null) {
+                session = existing;
+            }
+        }
+        return session;
+    }
+
+    boolean isRpcEnabled(String name) {
+        return options.rpcs.contains(name);
+    }
+
+    /**
+     * Content of the synthetic file every getFile request reads from, so clients can check
+     * what they downloaded.
+     */
+    public static byte fileByte(long position) {
+        return (byte) (position ^ (position >>> 8) ^ (position >>> 16) ^ 0x5a);
+    }
+
+    static long computeFingerprint(BigInteger modulus, BigInteger exponent) throws Exception {
+        SerializedData data = new SerializedData();
+        data.writeByteArray(toUnsignedBytes(modulus, 0));
+        data.writeByteArray(toUnsignedBytes(exponent, 0));
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        ByteBuffer buffer = ByteBuffer.wrap(hash, hash.length - 8, 8);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getLong();
+    }
+
+    /**
+     * Big endian magnitude of value, left padded with zeroes to length bytes if length is set.
+     */
+    static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = bytes[0] == 0 && bytes.length > 1 ? 1 : 0;
+        int count = bytes.length - start;
+        byte[] result = new byte[Math.max(length, count)];
+        System.arraycopy(bytes, start, result, result.length - count, count);
+        return result;
+    }
+
+    private static void usage() {
+        System.out.println("TestServer options:\n" +
+                "  -port N              listen port, 4430 by default\n" +
+                "  -advertise HOST      address put into help.getConfig, the connection's local address by default\n" +
+                "  -key FILE            RSA key file, created on first start (testserver.key)\n" +
+                "  -rpcs LIST           comma separated subset of getConfig,getDialogs,getFile,saveFilePart to answer\n" +
+                "  -dialogs N           dialogs returned by messages.getDialogs (100)\n" +
+                "  -fileSize BYTES      size of the file served by upload.getFile (10 MB)\n" +
+                "  -latency MS          delay added to every packet sent to the client\n" +
+                "  -jitter MS           random extra delay up to MS, packet order is kept\n" +
+                "  -bandwidth BYTES     outgoing bytes per second per connection, unlimited by default\n" +
+                "  -split BYTES         write packets in random pieces of at most BYTES\n" +
+                "  -splitDelay MS       pause between the pieces of a split packet\n" +
+                "  -drop RATE           probability to close the connection instead of answering a packet\n" +
+                "  -maxConnectionTime MS  close every connection after a random time up to MS\n" +
+                "  -seed N              seed for the injected faults\n" +
+                "  -stats SECONDS       statistics interval, 0 to disable (10)");
+    }
+
+    public static Options parseOptions(String[] args) {
+        Options options = new Options();
+        HashMap<String, String> values = new HashMap<String, String>();
+        for (int a = 0; a < args.length; a++) {
+            if (!args[a].startsWith("-") || a + 1 >= args.length) {
+                return null;
+            }
+            values.put(args[a].substring(1), args[++a]);
+        }
+        for (String key : values.keySet()) {
+            String value = values.get(key);
+            if (key.equals("port")) {
+                options.port = Integer.parseInt(value);
+            } else if (key.equals("advertise")) {
+                options.advertiseAddress = value;
+            } else if (key.equals("key")) {
+                options.keyFile = value;
+            } else if (key.equals("rpcs")) {
+                options.rpcs.clear();
+                for (String name : value.split(",")) {
+                    if (name.length() != 0) {
+                        options.rpcs.add(name);
+                    }
+                }
+            } else if (key.equals("dialogs")) {
+                options.dialogsCount = Integer.parseInt(value);
+            } else if (key.equals("fileSize")) {
+                options.fileSize = Integer.parseInt(value);
+            } else if (key.equals("latency")) {
+                options.latency = Integer.parseInt(value);
+            } else if (key.equals("jitter")) {
+                options.jitter = Integer.parseInt(value);
+            } else if (key.equals("bandwidth")) {
+                options.bandwidth = Integer.parseInt(value);
+            } else if (key.equals("split")) {
+                options.splitSize = Integer.parseInt(value);
+            } else if (key.equals("splitDelay")) {
+                options.splitDelay = Integer.parseInt(value);
+            } else if (key.equals("drop")) {
+                options.dropRate = Double.parseDouble(value);
+            } else if (key.equals("maxConnectionTime")) {
+                options.maxConnectionTime = Integer.parseInt(value);
+            } else if (key.equals("seed")) {
+                options.seed = Long.parseLong(value);
+            } else if (key.equals("stats")) {
+                options.statsInterval = Integer.parseInt(value);
+            } else {
+                return null;
+            }
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkPayloads.init();
+        Options options = parseOptions(args);
+        if (options == null) {
+            usage();
+            System.exit(1);
+            return;
+        }
+        TestServer server = new TestServer(options);
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + ", fault seed " + options.seed);
+        System.out.println("BuildVars.TEST_SERVER_PORT = " + server.getPort() + ";");
+        System.out.println("BuildVars.TEST_SERVER_PUBLIC_KEY = \"" + server.getPublicKey() + "\";");
+        while (true) {
+            if (options.statsInterval > 0) {
+                Thread.sleep(options.statsInterval * 1000L);
+                System.out.println(server.statsLine());
+            } else {
+                Thread.sleep(60 * 1000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * One client connection of {@link TestServer}. A reader thread parses and answers packets, a
+ * writer thread sends the answers once their injected delay has passed, so latency never
+ * reorders packets and a slow client doesn't stall the parsing.
+ */
+class TestServerConnection {
+
+    private static class OutgoingPacket {
+        public byte[] data;
+        public long due;
+    }
+
+    private final TestServer server;
+    private final Socket socket;
+    private final Random random;
+    private final Random writeRandom;
+    private final LinkedBlockingQueue<OutgoingPacket> outgoingPackets = new LinkedBlockingQueue<OutgoingPacket>();
+    private final MessageKeyData keyData = new MessageKeyData();
+    private final MessageDigest sha1;
+    private final ArrayList<Long> messagesToConfirm = new ArrayList<Long>();
+    private long lastDue;
+    private long closeTime;
+    private long lastMessageId;
+    private volatile boolean closed;
+
+    TestServerConnection(TestServer server, Socket socket) throws Exception {
+        this.server = server;
+        this.socket = socket;
+        random = new Random(server.options.seed + server.connectionsCount.get());
+        writeRandom = new Random(random.nextLong());
+        sha1 = MessageDigest.getInstance("SHA-1");
+        if (server.options.maxConnectionTime > 0) {
+            closeTime = System.currentTimeMillis() + 1 + random.nextInt(server.options.maxConnectionTime);
+        }
+        socket.setTcpNoDelay(true);
+    }
+
+    void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLoop();
+                } catch (Exception e) {
+                    if (!closed) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+                close();
+            }
+        }, "test server read " + socket.getPort()).start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (Exception e) {
+                    if (!closed) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+                close();
+            }
+        }, "test server write " + socket.getPort()).start();
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outgoingPackets.clear();
+        try {
+            socket.close();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void readLoop() throws Exception {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (input.readUnsignedByte() != 0xef) {
+            return;
+        }
+        while (!closed) {
+            int header = input.readUnsignedByte();
+            boolean quickAckRequested = (header & 0x80) != 0;
+            int length = header & 0x7f;
+            if (length == 0x7f) {
+                length = input.readUnsignedByte() | (input.readUnsignedByte() << 8) | (input.readUnsignedByte() << 16);
+            }
+            length *= 4;
+            if (length <= 0 || length > AbridgedFrameDecoder.MAX_FRAME_LENGTH) {
+                return;
+            }
+            byte[] packet = new byte[length];
+            input.readFully(packet);
+            server.bytesReceived.addAndGet(length + (length < 0x7f * 4 ? 1 : 4));
+
+            if (server.options.dropRate > 0 && random.nextDouble() < server.options.dropRate) {
+                server.droppedCount.incrementAndGet();
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            long authKeyId = buffer.getLong();
+            if (authKeyId == 0) {
+                processUnencrypted(buffer);
+            } else {
+                processEncrypted(buffer, authKeyId, quickAckRequested);
+            }
+        }
+    }
+
+    private void writeLoop() throws Exception {
+        OutputStream output = socket.getOutputStream();
+        TestServer.Options options = server.options;
+        while (!closed) {
+            OutgoingPacket packet = outgoingPackets.poll(100, TimeUnit.MILLISECONDS);
+            if (closeTime != 0 && System.currentTimeMillis() >= closeTime) {
+                server.droppedCount.incrementAndGet();
+                return;
+            }
+            if (packet == null) {
+                continue;
+            }
+            long wait = packet.due - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            int offset = 0;
+            while (offset < packet.data.length) {
+                int count = packet.data.length - offset;
+                if (options.splitSize > 0) {
+                    count = Math.min(count, 1 + writeRandom.nextInt(options.splitSize));
+                }
+                output.write(packet.data, offset, count);
+                output.flush();
+                offset += count;
+                server.bytesSent.addAndGet(count);
+                long pause = options.bandwidth > 0 ? count * 1000L / options.bandwidth : 0;
+                if (offset < packet.data.length) {
+                    pause += options.splitDelay;
+                }
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+        }
+    }
+
+    private void enqueue(byte[] data) {
+        TestServer.Options options = server.options;
+        OutgoingPacket packet = new OutgoingPacket();
+        packet.data = data;
+        packet.due = System.currentTimeMillis() + options.latency + (options.jitter > 0 ? random.nextInt(options.jitter + 1) : 0);
+        if (packet.due < lastDue) {
+            packet.due = lastDue;
+        }
+        lastDue = packet.due;
+        outgoingPackets.add(packet);
+    }
+
+    private void sendPacket(byte[] payload, int offset, int length) {
+        int words = length / 4;
+        int headerLength = words < 0x7f ? 1 : 4;
+        byte[] data = new byte[headerLength + length];
+        if (words < 0x7f) {
+            data[0] = (byte) words;
+        } else {
+            data[0] = 0x7f;
+            data[1] = (byte) words;
+            data[2] = (byte) (words >> 8);
+            data[3] = (byte) (words >> 16);
+        }
+        System.arraycopy(payload, offset, data, headerLength, length);
+        enqueue(data);
+    }
+
+    private void sendQuickAck(int ackId) {
+        int value = ackId | 0x80000000;
+        enqueue(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    }
+
+    private long generateMessageId() {
+        long messageId = (long) ((((double) System.currentTimeMillis()) * 4294967296.0) / 1000.0);
+        if (messageId <= lastMessageId) {
+            messageId = lastMessageId + 1;
+        }
+        while (messageId % 4 != 1) {
+            messageId++;
+        }
+        lastMessageId = messageId;
+        return messageId;
+    }
+
+    private void sendUnencrypted(TLObject message) {
+        SerializedData body = new SerializedData();
+        message.serializeToStream(body);
+        SerializedData data = new SerializedData(20 + body.length());
+        data.writeInt64(0);
+        data.writeInt64(generateMessageId());
+        data.writeInt32(body.length());
+        data.writeRaw(body.array(), 0, body.length());
+        sendPacket(data.array(), 0, data.length());
+    }
+
+    private void sendEncrypted(TestServer.Session session, byte[] authKey, long authKeyId, byte[] body, boolean contentRelated, boolean response) throws Exception {
+        int innerLength = 8 + 8 + 8 + 4 + 4 + body.length;
+        int padding = innerLength % 16 != 0 ? 16 - innerLength % 16 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + innerLength + padding);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(authKeyId);
+        buffer.position(8 + 16);
+        buffer.putLong(session.serverSalt);
+        buffer.putLong(session.sessionId);
+        buffer.putLong(session.generateMessageId(response));
+        buffer.putInt(session.generateSeqNo(contentRelated));
+        buffer.putInt(body.length);
+        buffer.put(body);
+        byte[] randomBytes = new byte[padding];
+        random.nextBytes(randomBytes);
+        buffer.put(randomBytes);
+
+        sha1.update(buffer.array(), 8 + 16, innerLength);
+        byte[] messageKeyFull = sha1.digest();
+        System.arraycopy(messageKeyFull, 4, buffer.array(), 8, 16);
+        MessageKeyData.generateMessageKeyData(authKey, messageKeyFull, 4, true, keyData);
+        AesIge.aesIgeEncryption(buffer, keyData.aesKey, keyData.aesIv, true, false, 8 + 16, buffer.capacity() - 8 - 16);
+        sendPacket(buffer.array(), 0, buffer.capacity());
+    }
+
+    private byte[] sha1(byte[]... parts) {
+        for (byte[] part : parts) {
+            sha1.update(part);
+        }
+        return sha1.digest();
+    }
+
+    //================================================================================
+    // Handshake
+    //================================================================================
+
+    private void processUnencrypted(ByteBuffer buffer) throws Exception {
+        buffer.getLong();
+        int length = buffer.getInt();
+        SerializedData data = new SerializedData(Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.position() + length));
+        int constructor = data.readInt32();
+        if (constructor == TLRPC.TL_req_pq.constructor) {
+            TestServer.HandshakeState state = new TestServer.HandshakeState();
+            state.nonce = data.readData(16);
+            state.serverNonce = new byte[16];
+            random.nextBytes(state.serverNonce);
+            BigInteger p = BigInteger.probablePrime(31, random);
+            BigInteger q;
+            do {
+                q = BigInteger.probablePrime(31, random);
+            } while (q.equals(p));
+            state.pq = p.multiply(q);
+            server.handshakes.put(new BigInteger(1, state.nonce), state);
+
+            TLRPC.TL_resPQ resPq = new TLRPC.TL_resPQ();
+            resPq.nonce = state.nonce;
+            resPq.server_nonce = state.serverNonce;
+            resPq.pq = TestServer.toUnsignedBytes(state.pq, 8);
+            resPq.server_public_key_fingerprints.add(server.rsaFingerprint);
+            sendUnencrypted(resPq);
+        } else if (constructor == TLRPC.TL_req_DH_params.constructor) {
+            TLRPC.TL_req_DH_params reqDh = new TLRPC.TL_req_DH_params();
+            reqDh.readParams(data);
+            TestServer.HandshakeState state = server.handshakes.get(new BigInteger(1, reqDh.nonce));
+            if (state == null || !Arrays.equals(state.serverNonce, reqDh.server_nonce) || reqDh.public_key_fingerprint != server.rsaFingerprint
+                    || !new BigInteger(1, reqDh.p).multiply(new BigInteger(1, reqDh.q)).equals(state.pq)) {
+                FileLog.e("tmessages", "test server: invalid req_DH_params");
+                close();
+                return;
+            }
+
+            BigInteger decrypted = new BigInteger(1, reqDh.encrypted_data).modPow(server.rsaPrivateExponent, server.rsaModulus);
+            byte[] dataWithHash = TestServer.toUnsignedBytes(decrypted, 255);
+            SerializedData innerStream = new SerializedData(Arrays.copyOfRange(dataWithHash, 20, dataWithHash.length));
+            int available = innerStream.length();
+            if (innerStream.readInt32() != TLRPC.TL_p_q_inner_data.constructor) {
+                FileLog.e("tmessages", "test server: can't decrypt p_q_inner_data");
+                close();
+                return;
+            }
+            TLRPC.TL_p_q_inner_data innerData = new TLRPC.TL_p_q_inner_data();
+            innerData.readParams(innerStream);
+            sha1.update(dataWithHash, 20, available - innerStream.length());
+            if (!Arrays.equals(sha1.digest(), Arrays.copyOf(dataWithHash, 20))) {
+                FileLog.e("tmessages", "test server: invalid p_q_inner_data hash");
+                close();
+                return;
+            }
+            state.newNonce = innerData.new_nonce;
+            state.a = new BigInteger(2048, random);
+
+            TLRPC.TL_server_DH_inner_data dhInnerData = new TLRPC.TL_server_DH_inner_data();
+            dhInnerData.nonce = state.nonce;
+            dhInnerData.server_nonce = state.serverNonce;
+            dhInnerData.g = TestServer.DH_G;
+            dhInnerData.dh_prime = TestServer.toUnsignedBytes(TestServer.DH_PRIME, 256);
+            dhInnerData.g_a = TestServer.toUnsignedBytes(BigInteger.valueOf(TestServer.DH_G).modPow(state.a, TestServer.DH_PRIME), 256);
+            dhInnerData.server_time = (int) (System.currentTimeMillis() / 1000);
+            SerializedData answer = new SerializedData();
+            dhInnerData.serializeToStream(answer);
+            byte[] answerBytes = answer.toByteArray();
+
+            SerializedData answerWithHash = new SerializedData();
+            answerWithHash.writeRaw(sha1(answerBytes));
+            answerWithHash.writeRaw(answerBytes);
+            while (answerWithHash.length() % 16 != 0) {
+                answerWithHash.writeByte(random.nextInt());
+            }
+            byte[] encryptedAnswer = answerWithHash.toByteArray();
+            AesIge.aesIgeEncryption(ByteBuffer.wrap(encryptedAnswer), temporaryAesKey(state), temporaryAesIv(state), true, false, 0, encryptedAnswer.length);
+
+            TLRPC.TL_server_DH_params_ok dhParams = new TLRPC.TL_server_DH_params_ok();
+            dhParams.nonce = state.nonce;
+            dhParams.server_nonce = state.serverNonce;
+            dhParams.encrypted_answer = encryptedAnswer;
+            sendUnencrypted(dhParams);
+        } else if (constructor == TLRPC.TL_set_client_DH_params.constructor) {
+            byte[] nonce = data.readData(16);
+            byte[] serverNonce = data.readData(16);
+            byte[] encryptedData = data.readByteArray();
+            TestServer.HandshakeState state = server.handshakes.get(new BigInteger(1, nonce));
+            if (state == null || state.a == null || !Arrays.equals(state.serverNonce, serverNonce) || encryptedData.length % 16 != 0) {
+                FileLog.e("tmessages", "test server: invalid set_client_DH_params");
+                close();
+                return;
+            }
+            AesIge.aesIgeEncryption(ByteBuffer.wrap(encryptedData), temporaryAesKey(state), temporaryAesIv(state), false, false, 0, encryptedData.length);
+            SerializedData innerStream = new SerializedData(Arrays.copyOfRange(encryptedData, 20, encryptedData.length));
+            if (innerStream.readInt32() != TLRPC.TL_client_DH_inner_data.constructor) {
+                FileLog.e("tmessages", "test server: can't decrypt client_DH_inner_data");
+                close();
+                return;
+            }
+            TLRPC.TL_client_DH_inner_data clientInnerData = new TLRPC.TL_client_DH_inner_data();
+            clientInnerData.readParams(innerStream);
+
+            byte[] authKey = TestServer.toUnsignedBytes(new BigInteger(1, clientInnerData.g_b).modPow(state.a, TestServer.DH_PRIME), 256);
+            byte[] authKeyHash = sha1(authKey);
+            ByteBuffer authKeyIdBuffer = ByteBuffer.wrap(authKeyHash, authKeyHash.length - 8, 8);
+            authKeyIdBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            server.authKeys.put(authKeyIdBuffer.getLong(), authKey);
+            server.handshakes.remove(new BigInteger(1, nonce));
+            server.handshakesCount.incrementAndGet();
+
+            byte[] newNonceHash = sha1(state.newNonce, new byte[] {1}, Arrays.copyOf(authKeyHash, 8));
+            TLRPC.TL_dh_gen_ok dhGenOk = new TLRPC.TL_dh_gen_ok();
+            dhGenOk.nonce = state.nonce;
+            dhGenOk.server_nonce = state.serverNonce;
+            dhGenOk.new_nonce_hash1 = Arrays.copyOfRange(newNonceHash, newNonceHash.length - 16, newNonceHash.length);
+            sendUnencrypted(dhGenOk);
+        }
+    }
+
+    private byte[] temporaryAesKey(TestServer.HandshakeState state) {
+        byte[] key = new byte[32];
+        System.arraycopy(sha1(state.newNonce, state.serverNonce), 0, key, 0, 20);
+        System.arraycopy(sha1(state.serverNonce, state.newNonce), 0, key, 20, 12);
+        return key;
+    }
+
+    private byte[] temporaryAesIv(TestServer.HandshakeState state) {
+        byte[] iv = new byte[32];
+        System.arraycopy(sha1(state.serverNonce, state.newNonce), 12, iv, 0, 8);
+        System.arraycopy(sha1(state.newNonce, state.newNonce), 0, iv, 8, 20);
+        System.arraycopy(state.newNonce, 0, iv, 28, 4);
+        return iv;
+    }
+
+    //================================================================================
+    // Encrypted messages
+    //================================================================================
+
+    private void processEncrypted(ByteBuffer buffer, long authKeyId, boolean quickAckRequested) throws Exception {
+        byte[] authKey = server.authKeys.get(authKeyId);
+        if (authKey == null || buffer.limit() < 8 + 16 + 32 || (buffer.limit() - 8 - 16) % 16 != 0) {
+            sendPacket(new byte[] {0x6c, (byte) 0xfe, (byte) 0xff, (byte) 0xff}, 0, 4);
+            return;
+        }
+        byte[] messageKey = new byte[16];
+        buffer.position(8);
+        buffer.get(messageKey);
+        MessageKeyData.generateMessageKeyData(authKey, messageKey, 0, false, keyData);
+        AesIge.aesIgeEncryption(buffer, keyData.aesKey, keyData.aesIv, false, false, 8 + 16, buffer.limit() - 8 - 16);
+
+        buffer.position(8 + 16);
+        buffer.getLong();
+        long sessionId = buffer.getLong();
+        long messageId = buffer.getLong();
+        int seqNo = buffer.getInt();
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            close();
+            return;
+        }
+        sha1.update(buffer.array(), 8 + 16, 32 + length);
+        byte[] messageKeyFull = sha1.digest();
+        for (int a = 0; a < 16; a++) {
+            if (messageKeyFull[4 + a] != messageKey[a]) {
+                FileLog.e("tmessages", "test server: invalid message key");
+                close();
+                return;
+            }
+        }
+        if (quickAckRequested) {
+            sendQuickAck(((messageKeyFull[0] & 0xff) | ((messageKeyFull[1] & 0xff) << 8) | ((messageKeyFull[2] & 0xff) << 16) | ((messageKeyFull[3] & 0xff) << 24)) & 0x7fffffff);
+        }
+
+        TestServer.Session session = server.getSession(sessionId);
+        synchronized (session) {
+            if (!session.announced) {
+                SerializedData data = new SerializedData();
+                data.writeInt32(TLRPC.TL_new_session_created.constructor);
+                data.writeInt64(messageId);
+                data.writeInt64(session.uniqueId);
+                data.writeInt64(session.serverSalt);
+                sendEncrypted(session, authKey, authKeyId, data.toByteArray(), true, false);
+                session.announced = true;
+            }
+        }
+
+        byte[] body = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.position() + length);
+        processMessage(session, authKey, authKeyId, messageId, seqNo, new SerializedData(body));
+
+        if (!messagesToConfirm.isEmpty()) {
+            SerializedData data = new SerializedData();
+            data.writeInt32(TLRPC.TL_msgs_ack.constructor);
+            data.writeInt32(0x1cb5c415);
+            data.writeInt32(messagesToConfirm.size());
+            for (long id : messagesToConfirm) {
+                data.writeInt64(id);
+            }
+            messagesToConfirm.clear();
+            sendEncrypted(session, authKey, authKeyId, data.toByteArray(), false, false);
+        }
+    }
+
+    private void processMessage(TestServer.Session session, byte[] authKey, long authKeyId, long messageId, int seqNo, SerializedData data) throws Exception {
+        if (seqNo % 2 != 0) {
+            messagesToConfirm.add(messageId);
+        }
+        int constructor = data.readInt32();
+        while (true) {
+            if (constructor == TLRPC.invokeWithLayer14.constructor) {
+                constructor = data.readInt32();
+            } else if (constructor == TLRPC.initConnection.constructor) {
+                data.readInt32();
+                for (int a = 0; a < 4; a++) {
+                    data.readString();
+                }
+                constructor = data.readInt32();
+            } else if (constructor == TLRPC.TL_invokeAfterMsg.constructor) {
+                data.readInt64();
+                constructor = data.readInt32();
+            } else {
+                break;
+            }
+        }
+
+        if (constructor == TLRPC.TL_msg_container.constructor) {
+            int count = data.readInt32();
+            for (int a = 0; a < count; a++) {
+                long innerMessageId = data.readInt64();
+                int innerSeqNo = data.readInt32();
+                int length = data.readInt32();
+                processMessage(session, authKey, authKeyId, innerMessageId, innerSeqNo, new SerializedData(data.readData(length)));
+            }
+        } else if (constructor == TLRPC.TL_gzip_packed.constructor) {
+            GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data.readByteArray()));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int count;
+            while ((count = input.read(chunk)) != -1) {
+                output.write(chunk, 0, count);
+            }
+            processMessage(session, authKey, authKeyId, messageId, 0, new SerializedData(output.toByteArray()));
+        } else if (constructor == TLRPC.TL_msgs_ack.constructor) {
+            return;
+        } else if (constructor == TLRPC.TL_ping.constructor || constructor == TLRPC.TL_ping_delay_disconnect.constructor) {
+            SerializedData pong = new SerializedData();
+            pong.writeInt32(TLRPC.TL_pong.constructor);
+            pong.writeInt64(messageId);
+            pong.writeInt64(data.readInt64());
+            sendEncrypted(session, authKey, authKeyId, pong.toByteArray(), true, true);
+        } else if (constructor == TLRPC.TL_get_future_salts.constructor) {
+            int count = Math.min(Math.max(data.readInt32(), 1), 64);
+            int now = (int) (System.currentTimeMillis() / 1000);
+            SerializedData salts = new SerializedData();
+            salts.writeInt32(TLRPC.TL_futuresalts.constructor);
+            salts.writeInt64(messageId);
+            salts.writeInt32(now);
+            salts.writeInt32(count);
+            for (int a = 0; a < count; a++) {
+                salts.writeInt32(now + a * 30 * 60);
+                salts.writeInt32(now + (a + 1) * 30 * 60);
+                salts.writeInt64(session.serverSalt);
+            }
+            sendEncrypted(session, authKey, authKeyId, salts.toByteArray(), true, true);
+        } else {
+            server.rpcCount.incrementAndGet();
+            SerializedData result = new SerializedData();
+            result.writeInt32(TLRPC.TL_rpc_result.constructor);
+            result.writeInt64(messageId);
+            processRpc(constructor, data, result);
+            sendEncrypted(session, authKey, authKeyId, result.toByteArray(), true, true);
+        }
+        messagesToConfirm.remove(Long.valueOf(messageId));
+    }
+
+    private void processRpc(int constructor, SerializedData data, SerializedData result) {
+        if (constructor == TLRPC.TL_help_getConfig.constructor && server.isRpcEnabled(TestServer.RPC_GET_CONFIG)) {
+            String address = server.options.advertiseAddress;
+            if (address == null) {
+                InetAddress localAddress = socket.getLocalAddress();
+                address = localAddress.getHostAddress();
+            }
+            TLRPC.TL_config config = new TLRPC.TL_config();
+            config.date = (int) (System.currentTimeMillis() / 1000);
+            config.this_dc = 1;
+            for (int a = 1; a <= 5; a++) {
+                TLRPC.TL_dcOption option = new TLRPC.TL_dcOption();
+                option.id = a;
+                option.hostname = "";
+                option.ip_address = address;
+                option.port = socket.getLocalPort();
+                config.dc_options.add(option);
+            }
+            config.chat_size_max = 200;
+            config.broadcast_size_max = 100;
+            config.serializeToStream(result);
+        } else if (constructor == TLRPC.TL_messages_getDialogs.constructor && server.isRpcEnabled(TestServer.RPC_GET_DIALOGS)) {
+            TLRPC.TL_messages_getDialogs request = new TLRPC.TL_messages_getDialogs();
+            request.readParams(data);
+            int offset = Math.max(0, Math.min(request.offset, server.options.dialogsCount));
+            int count = Math.max(0, Math.min(request.limit, server.options.dialogsCount - offset));
+            result.writeRaw(BenchmarkPayloads.messagesDialogs(offset, count, 64));
+        } else if (constructor == TLRPC.TL_upload_getFile.constructor && server.isRpcEnabled(TestServer.RPC_GET_FILE)) {
+            TLRPC.TL_upload_getFile request = new TLRPC.TL_upload_getFile();
+            request.readParams(data);
+            int count = Math.max(0, Math.min(request.limit, server.options.fileSize - request.offset));
+            byte[] bytes = new byte[count];
+            for (int a = 0; a < count; a++) {
+                bytes[a] = TestServer.fileByte(request.offset + a);
+            }
+            result.writeInt32(TLRPC.TL_upload_file.constructor);
+            result.writeInt32(TLRPC.TL_storage_filePartial.constructor);
+            result.writeInt32((int) (System.currentTimeMillis() / 1000));
+            result.writeByteArray(bytes);
+            server.fileBytesSent.addAndGet(count);
+        } else if ((constructor == TLRPC.TL_upload_saveFilePart.constructor || constructor == TLRPC.TL_upload_saveBigFilePart.constructor) && server.isRpcEnabled(TestServer.RPC_SAVE_FILE_PART)) {
+            data.readInt64();
+            data.readInt32();
+            if (constructor == TLRPC.TL_upload_saveBigFilePart.constructor) {
+                data.readInt32();
+            }
+            server.fileBytesReceived.addAndGet(data.readByteArray().length);
+            result.writeBool(true);
+        } else {
+            result.writeInt32(TLRPC.TL_rpc_error.constructor);
+            result.writeInt32(400);
+            result.writeString("METHOD_NOT_SUPPORTED");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Stands in for the app's Utilities on the benchmark classpath. The real one reads its primes
+ * from the application context when it is loaded, which there is none of on a desktop JVM, and
+ * its native AES isn't built for it either. Only what the benchmarked code paths reach is here,
+ * it comes before the app classes on the classpath.
+ */
+public class Utilities {
+    public static SecureRandom random = new SecureRandom();
+
+    public static void aesIgeEncryption(ByteBuffer buffer, byte[] key, byte[] iv, boolean encrypt, boolean changeIv, int offset, int length) {
+        AesIge.aesIgeEncryption(buffer, key, iv, encrypt, changeIv, offset, length);
+    }
+}
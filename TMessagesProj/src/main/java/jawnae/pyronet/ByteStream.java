@@ -21,11 +21,17 @@ package jawnae.pyronet;
 import org.telegram.messenger.BuffersStorage;
 import org.telegram.messenger.ByteBufferDesc;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
 
 public class ByteStream {
+    private static final int MAX_GATHER_BUFFERS = 64;
+
     private final ArrayList<ByteBufferDesc> queue;
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[8];
+    private long remaining;
 
     public ByteStream() {
         this.queue = new ArrayList<ByteBufferDesc>();
@@ -36,38 +42,59 @@ public class ByteStream {
             throw new NullPointerException();
         }
         this.queue.add(buf);
+        this.remaining += buf.buffer.remaining();
     }
 
     public boolean hasData() {
-        int size = this.queue.size();
-        for (ByteBufferDesc aQueue : this.queue) {
-            if (aQueue.hasRemaining()) {
-                return true;
-            }
-        }
-        return false;
+        return this.remaining > 0;
     }
 
-    public void get(ByteBuffer dst) {
-        if (dst == null) {
-            throw new NullPointerException();
-        }
-
-        for (ByteBufferDesc bufferDesc : this.queue) {
-            ByteBuffer data = bufferDesc.buffer.slice();
+    /**
+     * Returns the number of queued bytes that are not written yet.
+     */
+    public long remaining() {
+        return this.remaining;
+    }
 
-            if (data.remaining() > dst.remaining()) {
-                data.limit(dst.remaining());
-                dst.put(data);
-                break;
+    /**
+     * Hands the queued buffers to the channel in a single gathering write, without copying them.
+     * Fully written buffers are returned to BuffersStorage.
+     *
+     * @return number of bytes written
+     */
+    public long write(GatheringByteChannel channel) throws IOException {
+        int count = Math.min(this.queue.size(), MAX_GATHER_BUFFERS);
+        if (count == 0) {
+            return 0;
+        }
+        if (this.gatherBuffers.length < count) {
+            this.gatherBuffers = new ByteBuffer[Math.max(count, this.gatherBuffers.length * 2)];
+        }
+        for (int a = 0; a < count; a++) {
+            this.gatherBuffers[a] = this.queue.get(a).buffer;
+        }
+        long written;
+        try {
+            written = channel.write(this.gatherBuffers, 0, count);
+        } finally {
+            for (int a = 0; a < count; a++) {
+                this.gatherBuffers[a] = null;
             }
-
-            dst.put(data);
-
-            if (!dst.hasRemaining()) {
-                break;
+        }
+        if (written > 0) {
+            this.remaining -= written;
+            int done = 0;
+            while (done < count && !this.queue.get(done).hasRemaining()) {
+                done++;
+            }
+            for (int a = 0; a < done; a++) {
+                BuffersStorage.getInstance().reuseFreeBuffer(this.queue.get(a));
+            }
+            if (done != 0) {
+                this.queue.subList(0, done).clear();
             }
         }
+        return written;
     }
 
     public void discard(int count) {
@@ -78,13 +105,16 @@ public class ByteStream {
 
             if (count < data.buffer.remaining()) {
                 data.position(data.position() + count);
+                this.remaining -= count;
                 count = 0;
                 break;
             }
 
+            int left = data.buffer.remaining();
             this.queue.remove(0);
             BuffersStorage.getInstance().reuseFreeBuffer(data);
-            count -= data.buffer.remaining();
+            count -= left;
+            this.remaining -= left;
         }
 
         if (count != 0) {
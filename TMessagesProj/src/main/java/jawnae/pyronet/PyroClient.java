@@ -144,6 +144,7 @@ public class PyroClient {
         // prevent a call to setTimeout from immediately causing a timeout
         this.lastEventTime = System.currentTimeMillis();
         this.timeout = ms;
+        this.selector.scheduleTimeout(this);
     }
 
     public void setLinger(boolean enabled, int seconds) throws IOException {
@@ -358,10 +359,25 @@ public class PyroClient {
 
     private long lastEventTime;
 
+    // maintained by PyroSelector while this client sits in its timeout queue
+    boolean timeoutQueued;
+    long queuedDeadline;
+
     boolean didTimeout(long now) {
         return this.timeout != 0 && (now - this.lastEventTime) > this.timeout;
     }
 
+    /**
+     * Returns the first time didTimeout can return true, or 0 without a timeout.
+     */
+    long timeoutDeadline() {
+        return this.timeout == 0 ? 0 : this.lastEventTime + this.timeout + 1;
+    }
+
+    boolean isOpen() {
+        return this.key.channel().isOpen();
+    }
+
     private void onReadyToConnect(long now) throws IOException {
         this.selector.checkThread();
         this.lastEventTime = now;
@@ -398,20 +414,10 @@ public class PyroClient {
 
         int sent = 0;
 
-        // copy outbound bytes into network buffer
-        ByteBuffer buffer = this.selector.networkBuffer;
-        buffer.clear();
-        this.outbound.get(buffer);
-        buffer.flip();
-
-        // write to channel
-        if (buffer.hasRemaining()) {
+        // gathering write straight from the queued buffers
+        if (this.outbound.hasData()) {
             SocketChannel channel = (SocketChannel) key.channel();
-            sent = channel.write(buffer);
-        }
-
-        if (sent > 0) {
-            this.outbound.discard(sent);
+            sent = (int) this.outbound.write(channel);
         }
 
         for (PyroClientListener listener: this.listeners)
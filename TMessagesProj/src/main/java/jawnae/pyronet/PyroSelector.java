@@ -27,7 +27,9 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -86,19 +88,35 @@ public class PyroSelector {
         this.select(0);
     }
 
+    /**
+     * Waits for events at most eventTimeout ms (0 waits forever), but never past the nearest
+     * socket timeout deadline.
+     */
     public void select(long eventTimeout) {
         this.checkThread();
 
         //
 
         this.executePendingTasks();
-        this.performNioSelect(eventTimeout);
+        this.performNioSelect(this.selectTimeout(eventTimeout, System.currentTimeMillis()));
 
         final long now = System.currentTimeMillis();
         this.handleSelectedKeys(now);
         this.handleSocketTimeouts(now);
     }
 
+    private long selectTimeout(long eventTimeout, long now) {
+        PyroClient next = this.timeouts.peek();
+        if (next == null) {
+            return eventTimeout;
+        }
+        long untilDeadline = next.queuedDeadline - now;
+        if (untilDeadline <= 0) {
+            return -1;
+        }
+        return eventTimeout == 0 ? untilDeadline : Math.min(eventTimeout, untilDeadline);
+    }
+
     private void executePendingTasks() {
         while (true) {
             Runnable task = this.tasks.poll();
@@ -116,7 +134,11 @@ public class PyroSelector {
     private void performNioSelect(long timeout) {
         int selected;
         try {
-            selected = nioSelector.select(timeout);
+            if (timeout < 0) {
+                selected = nioSelector.selectNow();
+            } else {
+                selected = nioSelector.select(timeout);
+            }
         } catch (IOException exc) {
             exc.printStackTrace();
         }
@@ -136,19 +158,55 @@ public class PyroSelector {
         }
     }
 
+    // clients ordered by the deadline they were queued with. A client whose last event moved
+    // its real deadline further is re-queued when its entry comes up, so only clients with
+    // expiring entries are ever looked at.
+    private final PriorityQueue<PyroClient> timeouts = new PriorityQueue<PyroClient>(11, new Comparator<PyroClient>() {
+        @Override
+        public int compare(PyroClient lhs, PyroClient rhs) {
+            return lhs.queuedDeadline < rhs.queuedDeadline ? -1 : (lhs.queuedDeadline == rhs.queuedDeadline ? 0 : 1);
+        }
+    });
+
+    void scheduleTimeout(PyroClient client) {
+        this.checkThread();
+
+        long deadline = client.timeoutDeadline();
+        if (deadline == 0) {
+            return;
+        }
+        if (client.timeoutQueued) {
+            if (client.queuedDeadline <= deadline) {
+                return;
+            }
+            this.timeouts.remove(client);
+        }
+        client.queuedDeadline = deadline;
+        client.timeoutQueued = true;
+        this.timeouts.add(client);
+    }
+
     private void handleSocketTimeouts(long now) {
-        for (SelectionKey key: nioSelector.keys()) {
-            if (key.channel() instanceof SocketChannel) {
-                PyroClient client = (PyroClient) key.attachment();
+        while (true) {
+            PyroClient client = this.timeouts.peek();
+            if (client == null || client.queuedDeadline > now) {
+                break;
+            }
+            this.timeouts.poll();
+            client.timeoutQueued = false;
 
-                if (client.didTimeout(now)) {
-                    try {
-                        throw new SocketTimeoutException(
-                                "PyroNet detected NIO timeout");
-                    } catch (SocketTimeoutException exc) {
-                        client.onConnectionError(exc);
-                    }
+            if (!client.isOpen()) {
+                continue;
+            }
+            if (client.didTimeout(now)) {
+                try {
+                    throw new SocketTimeoutException(
+                            "PyroNet detected NIO timeout");
+                } catch (SocketTimeoutException exc) {
+                    client.onConnectionError(exc);
                 }
+            } else {
+                this.scheduleTimeout(client);
             }
         }
     }
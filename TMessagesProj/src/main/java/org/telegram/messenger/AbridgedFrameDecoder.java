@@ -0,0 +1,165 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits the incoming byte stream of the abridged MTProto transport into packets. Data can be
+ * fed in chunks of any size. Packets that are complete inside a chunk are passed to the listener
+ * straight from that chunk, only a packet cut by a chunk boundary is accumulated in a pooled buffer.
+ * Quick ack answers (first byte with the high bit set) are reported inline.
+ */
+public class AbridgedFrameDecoder {
+
+    public static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
+
+    public interface FrameListener {
+        /**
+         * @param frame positioned at the first byte of the packet with the limit at its end.
+         *              Only valid during the call, copy what needs to be kept.
+         */
+        public abstract void onFrame(ByteBuffer frame, int length);
+        public abstract void onQuickAck(int ackId);
+    }
+
+    private final FrameListener listener;
+    private final byte[] header = new byte[4];
+    private int headerLength;
+    private int frameLength = -1;
+    private ByteBufferDesc pendingFrame;
+
+    public AbridgedFrameDecoder(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Drops a partially received packet, for example after a reconnect.
+     */
+    public void reset() {
+        headerLength = 0;
+        frameLength = -1;
+        if (pendingFrame != null) {
+            BuffersStorage.getInstance().reuseFreeBuffer(pendingFrame);
+            pendingFrame = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes buffered for an incomplete header or packet.
+     */
+    public int pendingBytes() {
+        return headerLength + (pendingFrame != null ? pendingFrame.position() : 0);
+    }
+
+    /**
+     * Consumes all remaining bytes of data. Position and limit of data are restored around
+     * listener calls, on return the buffer is fully consumed.
+     *
+     * @return false if the stream contains an invalid packet length, the connection
+     * has to be dropped then
+     */
+    public boolean decode(ByteBuffer data) {
+        ByteOrder order = data.order();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (data.hasRemaining()) {
+                if (frameLength == -1) {
+                    if (!readHeader(data)) {
+                        break;
+                    }
+                    if (frameLength == -1) {
+                        continue;
+                    }
+                    if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+                        FileLog.e("tmessages", "Invalid packet length " + frameLength);
+                        reset();
+                        return false;
+                    }
+                }
+
+                if (pendingFrame == null && data.remaining() >= frameLength) {
+                    int start = data.position();
+                    int limit = data.limit();
+                    data.limit(start + frameLength);
+                    listener.onFrame(data, frameLength);
+                    data.limit(limit);
+                    data.position(start + frameLength);
+                    frameLength = -1;
+                    continue;
+                }
+
+                if (pendingFrame == null) {
+                    pendingFrame = BuffersStorage.getInstance().getFreeBuffer(frameLength);
+                }
+                int count = Math.min(data.remaining(), frameLength - pendingFrame.position());
+                int limit = data.limit();
+                data.limit(data.position() + count);
+                pendingFrame.buffer.put(data);
+                data.limit(limit);
+                if (pendingFrame.position() == frameLength) {
+                    ByteBufferDesc frame = pendingFrame;
+                    int length = frameLength;
+                    pendingFrame = null;
+                    frameLength = -1;
+                    frame.position(0);
+                    frame.limit(length);
+                    listener.onFrame(frame.buffer, length);
+                    BuffersStorage.getInstance().reuseFreeBuffer(frame);
+                }
+            }
+        } finally {
+            data.order(order);
+        }
+        return true;
+    }
+
+    /**
+     * Collects header bytes. Returns false if the header is still incomplete, otherwise sets
+     * frameLength, or leaves it at -1 after a quick ack.
+     */
+    private boolean readHeader(ByteBuffer data) {
+        if (headerLength == 0 && data.remaining() >= 4) {
+            int first = data.get(data.position());
+            if ((first & 0x80) != 0) {
+                int ackId = data.order(ByteOrder.BIG_ENDIAN).getInt(data.position()) & 0x7fffffff;
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                data.position(data.position() + 4);
+                listener.onQuickAck(ackId);
+            } else if (first == 0x7f) {
+                frameLength = (data.getInt() >>> 8) * 4;
+            } else {
+                data.get();
+                frameLength = first * 4;
+            }
+            return true;
+        }
+
+        while (data.hasRemaining()) {
+            header[headerLength++] = data.get();
+            int first = header[0];
+            int needed = (first & 0x80) != 0 || first == 0x7f ? 4 : 1;
+            if (headerLength < needed) {
+                continue;
+            }
+            headerLength = 0;
+            if ((first & 0x80) != 0) {
+                int ackId = ((header[0] & 0x7f) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+                listener.onQuickAck(ackId);
+            } else if (first == 0x7f) {
+                frameLength = ((header[1] & 0xff) | ((header[2] & 0xff) << 8) | ((header[3] & 0xff) << 16)) * 4;
+            } else {
+                frameLength = first * 4;
+            }
+            return true;
+        }
+        return false;
+    }
+}
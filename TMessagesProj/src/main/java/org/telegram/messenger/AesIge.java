@@ -0,0 +1,154 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256 in IGE mode on top of the javax.crypto ECB block cipher. Produces the same output and
+ * the same iv updates as the native AES_ige_encrypt: iv[0..16) is the previous ciphertext
+ * block, iv[16..32) the previous plaintext block.
+ */
+public class AesIge {
+
+    public static final int IMPLEMENTATION_NATIVE = 0;
+    public static final int IMPLEMENTATION_JAVA = 1;
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static volatile int implementation = IMPLEMENTATION_NATIVE;
+
+    private static class CipherState {
+        public Cipher encryptCipher;
+        public Cipher decryptCipher;
+        public byte[] encryptKey;
+        public byte[] decryptKey;
+        public byte[] chunk = new byte[CHUNK_SIZE];
+        public byte[] block = new byte[BLOCK_SIZE];
+        public byte[] ivCipher = new byte[BLOCK_SIZE];
+        public byte[] ivPlain = new byte[BLOCK_SIZE];
+        public byte[] previous = new byte[BLOCK_SIZE];
+
+        public Cipher getCipher(byte[] key, boolean encrypt) throws Exception {
+            if (encrypt) {
+                if (encryptCipher == null || !Arrays.equals(encryptKey, key)) {
+                    if (encryptCipher == null) {
+                        encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+                    }
+                    encryptCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+                    encryptKey = key.clone();
+                }
+                return encryptCipher;
+            } else {
+                if (decryptCipher == null || !Arrays.equals(decryptKey, key)) {
+                    if (decryptCipher == null) {
+                        decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+                    }
+                    decryptCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+                    decryptKey = key.clone();
+                }
+                return decryptCipher;
+            }
+        }
+    }
+
+    private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+        @Override
+        protected CipherState initialValue() {
+            return new CipherState();
+        }
+    };
+
+    public static int getImplementation() {
+        return implementation;
+    }
+
+    /**
+     * Chooses what {@link Utilities#aesIgeEncryption} uses. Both produce identical results,
+     * so switching while other threads encrypt is safe.
+     */
+    public static void setImplementation(int value) {
+        implementation = value;
+    }
+
+    /**
+     * Encrypts or decrypts length bytes of buffer starting at offset in place. Works on heap and
+     * direct buffers and doesn't touch their position or limit. When changeIv is set, iv is
+     * updated to continue the chain with the next call.
+     */
+    public static void aesIgeEncryption(ByteBuffer buffer, byte[] key, byte[] iv, boolean encrypt, boolean changeIv, int offset, int length) {
+        if (length % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("length " + length + " is not a multiple of " + BLOCK_SIZE);
+        }
+        CipherState state = cipherState.get();
+        try {
+            Cipher cipher = state.getCipher(key, encrypt);
+            System.arraycopy(iv, 0, state.ivCipher, 0, BLOCK_SIZE);
+            System.arraycopy(iv, BLOCK_SIZE, state.ivPlain, 0, BLOCK_SIZE);
+            if (buffer.hasArray()) {
+                process(cipher, state, buffer.array(), buffer.arrayOffset() + offset, length, encrypt);
+            } else {
+                ByteBuffer view = buffer.duplicate();
+                int done = 0;
+                while (done < length) {
+                    int count = Math.min(CHUNK_SIZE, length - done);
+                    view.limit(offset + done + count);
+                    view.position(offset + done);
+                    view.get(state.chunk, 0, count);
+                    process(cipher, state, state.chunk, 0, count, encrypt);
+                    view.position(offset + done);
+                    view.put(state.chunk, 0, count);
+                    done += count;
+                }
+            }
+            if (changeIv) {
+                System.arraycopy(state.ivCipher, 0, iv, 0, BLOCK_SIZE);
+                System.arraycopy(state.ivPlain, 0, iv, BLOCK_SIZE, BLOCK_SIZE);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void process(Cipher cipher, CipherState state, byte[] data, int offset, int length, boolean encrypt) throws Exception {
+        byte[] block = state.block;
+        byte[] ivCipher = state.ivCipher;
+        byte[] ivPlain = state.ivPlain;
+        byte[] previous = state.previous;
+        for (int position = offset; position < offset + length; position += BLOCK_SIZE) {
+            System.arraycopy(data, position, previous, 0, BLOCK_SIZE);
+            if (encrypt) {
+                for (int a = 0; a < BLOCK_SIZE; a++) {
+                    block[a] = (byte) (previous[a] ^ ivCipher[a]);
+                }
+                cipher.update(block, 0, BLOCK_SIZE, data, position);
+                for (int a = 0; a < BLOCK_SIZE; a++) {
+                    data[position + a] ^= ivPlain[a];
+                }
+                System.arraycopy(data, position, ivCipher, 0, BLOCK_SIZE);
+                System.arraycopy(previous, 0, ivPlain, 0, BLOCK_SIZE);
+            } else {
+                for (int a = 0; a < BLOCK_SIZE; a++) {
+                    block[a] = (byte) (previous[a] ^ ivPlain[a]);
+                }
+                cipher.update(block, 0, BLOCK_SIZE, data, position);
+                for (int a = 0; a < BLOCK_SIZE; a++) {
+                    data[position + a] ^= ivCipher[a];
+                }
+                System.arraycopy(data, position, ivPlain, 0, BLOCK_SIZE);
+                System.arraycopy(previous, 0, ivCipher, 0, BLOCK_SIZE);
+            }
+        }
+    }
+}
@@ -8,18 +8,68 @@
 
 package org.telegram.messenger;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class BuffersStorage {
 
-    private final ArrayList<ByteBufferDesc> freeBuffers128;
-    private final ArrayList<ByteBufferDesc> freeBuffers1024;
-    private final ArrayList<ByteBufferDesc> freeBuffers4096;
-    private final ArrayList<ByteBufferDesc> freeBuffers16384;
-    private final ArrayList<ByteBufferDesc> freeBuffers32768;
-    private final ArrayList<ByteBufferDesc> freeBuffersBig;
-    private boolean isThreadSafe;
-    private final static Integer sync = 1;
+    public static final int[] SIZE_CLASSES = new int[] {128, 1024 + 200, 4096 + 200, 16384 + 200, 40000, 280000};
+    public static final int[] DEFAULT_MAX_COUNTS = new int[] {10, 10, 10, 10, 10, 10};
+
+    private final AtomicReferenceArray<ByteBufferDesc>[] freeBuffers;
+
+    public static class PoolStats {
+        public int sizeClass;
+        public int bufferSize;
+        public int maxCount;
+        public long hits;
+        public long misses;
+        public long allocations;
+        public long returns;
+        public long dropped;
+        public int free;
+        public int inUse;
+        public int maxInUse;
+        public long bytesResident;
+
+        @Override
+        public String toString() {
+            return String.format("pool %d: hits = %d, misses = %d, allocations = %d, returns = %d, dropped = %d, free = %d/%d, in use = %d, max in use = %d, resident = %d bytes",
+                    bufferSize, hits, misses, allocations, returns, dropped, free, maxCount, inUse, maxInUse, bytesResident);
+        }
+    }
+
+    private static class LeakReference extends WeakReference<ByteBufferDesc> {
+        public final Throwable site;
+        public final int capacity;
+        public final long acquireTime;
+
+        public LeakReference(ByteBufferDesc buffer, ReferenceQueue<ByteBufferDesc> queue) {
+            super(buffer, queue);
+            capacity = buffer.buffer.capacity();
+            acquireTime = System.currentTimeMillis();
+            site = new Throwable("buffer " + capacity + " acquired at " + acquireTime);
+        }
+    }
+
+    //stats use one extra slot for buffers bigger than the largest size class
+    private final AtomicLongArray hits;
+    private final AtomicLongArray misses;
+    private final AtomicLongArray returns;
+    private final AtomicLongArray dropped;
+    private final AtomicIntegerArray freeCount;
+    private final AtomicIntegerArray inUse;
+    private final AtomicIntegerArray maxInUse;
+    private final AtomicLongArray oversizeBytes;
+
+    private volatile boolean leakDetection = false;
+    private final ReferenceQueue<ByteBufferDesc> leakQueue = new ReferenceQueue<ByteBufferDesc>();
+    private final ConcurrentHashMap<LeakReference, Boolean> outstandingBuffers = new ConcurrentHashMap<LeakReference, Boolean>();
 
     private static volatile BuffersStorage Instance = null;
     public static BuffersStorage getInstance() {
@@ -36,67 +86,116 @@ public class BuffersStorage {
     }
 
     public BuffersStorage(boolean threadSafe) {
-        isThreadSafe = threadSafe;
-        freeBuffers128 = new ArrayList<ByteBufferDesc>();
-        freeBuffers1024 = new ArrayList<ByteBufferDesc>();
-        freeBuffers4096 = new ArrayList<ByteBufferDesc>();
-        freeBuffers16384 = new ArrayList<ByteBufferDesc>();
-        freeBuffers32768 = new ArrayList<ByteBufferDesc>();
-        freeBuffersBig = new ArrayList<ByteBufferDesc>();
+        this(threadSafe, DEFAULT_MAX_COUNTS);
+    }
+
+    /**
+     * Pools are bounded slot arrays, one per size class. Slots are taken and filled with
+     * compareAndSet, so checkouts never block and never allocate, and threadSafe is kept
+     * only for source compatibility.
+     *
+     * @param maxCounts how many free buffers to keep for each entry of {@link #SIZE_CLASSES}
+     */
+    public BuffersStorage(boolean threadSafe, int[] maxCounts) {
+        if (maxCounts == null || maxCounts.length != SIZE_CLASSES.length) {
+            throw new IllegalArgumentException("maxCounts must have " + SIZE_CLASSES.length + " entries");
+        }
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<ByteBufferDesc>[] pools = (AtomicReferenceArray<ByteBufferDesc>[]) new AtomicReferenceArray<?>[SIZE_CLASSES.length];
+        freeBuffers = pools;
+        for (int a = 0; a < SIZE_CLASSES.length; a++) {
+            freeBuffers[a] = new AtomicReferenceArray<ByteBufferDesc>(Math.max(0, maxCounts[a]));
+        }
+        hits = new AtomicLongArray(SIZE_CLASSES.length + 1);
+        misses = new AtomicLongArray(SIZE_CLASSES.length + 1);
+        returns = new AtomicLongArray(SIZE_CLASSES.length + 1);
+        dropped = new AtomicLongArray(SIZE_CLASSES.length + 1);
+        freeCount = new AtomicIntegerArray(SIZE_CLASSES.length + 1);
+        inUse = new AtomicIntegerArray(SIZE_CLASSES.length + 1);
+        maxInUse = new AtomicIntegerArray(SIZE_CLASSES.length + 1);
+        oversizeBytes = new AtomicLongArray(1);
+
+        for (int a = 0; a < Math.min(5, freeBuffers[0].length()); a++) {
+            freeBuffers[0].set(a, new ByteBufferDesc(SIZE_CLASSES[0]));
+            freeCount.incrementAndGet(0);
+        }
+    }
+
+    /**
+     * When enabled every checked out buffer remembers the stack trace of its acquisition.
+     * Buffers that get garbage collected without going through {@link #reuseFreeBuffer}
+     * are reported through FileLog. Capturing a stack trace per checkout is expensive,
+     * so this is meant for debug sessions only.
+     */
+    public void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+        if (!enabled) {
+            outstandingBuffers.clear();
+        }
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+
+    public static int getSizeClass(int size) {
+        for (int a = 0; a < SIZE_CLASSES.length; a++) {
+            if (size <= SIZE_CLASSES[a]) {
+                return a;
+            }
+        }
+        return -1;
+    }
 
-        for (int a = 0; a < 5; a++) {
-            freeBuffers128.add(new ByteBufferDesc(128));
+    private static int getSizeClassForCapacity(int capacity) {
+        for (int a = 0; a < SIZE_CLASSES.length; a++) {
+            if (capacity == SIZE_CLASSES[a]) {
+                return a;
+            }
         }
+        return -1;
     }
 
     public ByteBufferDesc getFreeBuffer(int size) {
         if (size <= 0) {
             return null;
         }
-        int byteCount = 0;
-        ArrayList<ByteBufferDesc> arrayToGetFrom = null;
         ByteBufferDesc buffer = null;
-        if (size <= 128) {
-            arrayToGetFrom = freeBuffers128;
-            byteCount = 128;
-        } else if (size <= 1024 + 200) {
-            arrayToGetFrom = freeBuffers1024;
-            byteCount = 1024 + 200;
-        } else if (size <= 4096 + 200) {
-            arrayToGetFrom = freeBuffers4096;
-            byteCount = 4096 + 200;
-        } else if (size <= 16384 + 200) {
-            arrayToGetFrom = freeBuffers16384;
-            byteCount = 16384 + 200;
-        } else if (size <= 40000) {
-            arrayToGetFrom = freeBuffers32768;
-            byteCount = 40000;
-        } else if (size <= 280000) {
-            arrayToGetFrom = freeBuffersBig;
-            byteCount = 280000;
-        } else {
-            buffer = new ByteBufferDesc(size);
-        }
-
-        if (arrayToGetFrom != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToGetFrom.size() > 0) {
-                        buffer = arrayToGetFrom.get(0);
-                        arrayToGetFrom.remove(0);
-                    }
-                }
-            } else {
-                if (arrayToGetFrom.size() > 0) {
-                    buffer = arrayToGetFrom.get(0);
-                    arrayToGetFrom.remove(0);
+        int sizeClass = getSizeClass(size);
+        int statIndex = sizeClass != -1 ? sizeClass : SIZE_CLASSES.length;
+        if (sizeClass != -1) {
+            AtomicReferenceArray<ByteBufferDesc> arrayToGetFrom = freeBuffers[sizeClass];
+            for (int a = 0; a < arrayToGetFrom.length(); a++) {
+                ByteBufferDesc candidate = arrayToGetFrom.get(a);
+                if (candidate != null && arrayToGetFrom.compareAndSet(a, candidate, null)) {
+                    buffer = candidate;
+                    break;
                 }
             }
-
             if (buffer == null) {
-                buffer = new ByteBufferDesc(byteCount);
-                FileLog.e("tmessages", "create new " + byteCount + " buffer");
+                buffer = new ByteBufferDesc(SIZE_CLASSES[sizeClass]);
+                misses.incrementAndGet(statIndex);
+                FileLog.e("tmessages", "create new " + SIZE_CLASSES[sizeClass] + " buffer");
+            } else {
+                hits.incrementAndGet(statIndex);
+                freeCount.decrementAndGet(statIndex);
             }
+        } else {
+            buffer = new ByteBufferDesc(size);
+            misses.incrementAndGet(statIndex);
+            oversizeBytes.addAndGet(0, size);
+        }
+        int count = inUse.incrementAndGet(statIndex);
+        int max = maxInUse.get(statIndex);
+        while (count > max && !maxInUse.compareAndSet(statIndex, max, count)) {
+            max = maxInUse.get(statIndex);
+        }
+
+        if (leakDetection) {
+            reportLeaks();
+            LeakReference reference = new LeakReference(buffer, leakQueue);
+            buffer.leakReference = reference;
+            outstandingBuffers.put(reference, Boolean.TRUE);
         }
 
         buffer.buffer.limit(size).rewind();
@@ -104,38 +203,100 @@ public class BuffersStorage {
     }
 
     public void reuseFreeBuffer(ByteBufferDesc buffer) {
-        if (buffer == null) {
+        if (buffer == null || buffer.buffer == null) {
             return;
         }
-        int maxCount = 10;
-        ArrayList<ByteBufferDesc> arrayToReuse = null;
-        if (buffer.buffer.capacity() == 128) {
-            arrayToReuse = freeBuffers128;
-        } else if (buffer.buffer.capacity() == 1024 + 200) {
-            arrayToReuse = freeBuffers1024;
-        } if (buffer.buffer.capacity() == 4096 + 200) {
-            arrayToReuse = freeBuffers4096;
-        } else if (buffer.buffer.capacity() == 16384 + 200) {
-            arrayToReuse = freeBuffers16384;
-        } else if (buffer.buffer.capacity() == 40000) {
-            arrayToReuse = freeBuffers32768;
-        } else if (buffer.buffer.capacity() == 280000) {
-            arrayToReuse = freeBuffersBig;
-            maxCount = 10;
-        }
-        if (arrayToReuse != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToReuse.size() < maxCount) {
-                        arrayToReuse.add(buffer);
-                    } else {
-                        FileLog.e("tmessages", "too more");
-                    }
-                }
+        Object reference = buffer.leakReference;
+        if (reference != null) {
+            buffer.leakReference = null;
+            ((LeakReference) reference).clear();
+            outstandingBuffers.remove(reference);
+        }
+        int sizeClass = getSizeClassForCapacity(buffer.buffer.capacity());
+        int statIndex = sizeClass != -1 ? sizeClass : SIZE_CLASSES.length;
+        returns.incrementAndGet(statIndex);
+        if (inUse.get(statIndex) > 0) {
+            inUse.decrementAndGet(statIndex);
+        }
+        if (sizeClass == -1) {
+            oversizeBytes.addAndGet(0, -buffer.buffer.capacity());
+            dropped.incrementAndGet(statIndex);
+            return;
+        }
+        AtomicReferenceArray<ByteBufferDesc> arrayToReuse = freeBuffers[sizeClass];
+        for (int a = 0; a < arrayToReuse.length(); a++) {
+            if (arrayToReuse.get(a) == null && arrayToReuse.compareAndSet(a, null, buffer)) {
+                freeCount.incrementAndGet(statIndex);
+                return;
+            }
+        }
+        dropped.incrementAndGet(statIndex);
+        FileLog.e("tmessages", "too more");
+    }
+
+    /**
+     * Returns a snapshot of the counters of every size class. The last entry describes
+     * buffers bigger than the largest size class, which are never pooled.
+     */
+    public ArrayList<PoolStats> getStats() {
+        ArrayList<PoolStats> result = new ArrayList<PoolStats>();
+        for (int a = 0; a <= SIZE_CLASSES.length; a++) {
+            PoolStats stats = new PoolStats();
+            stats.sizeClass = a < SIZE_CLASSES.length ? a : -1;
+            stats.bufferSize = a < SIZE_CLASSES.length ? SIZE_CLASSES[a] : 0;
+            stats.maxCount = a < SIZE_CLASSES.length ? freeBuffers[a].length() : 0;
+            stats.hits = hits.get(a);
+            stats.misses = misses.get(a);
+            stats.allocations = stats.misses;
+            stats.returns = returns.get(a);
+            stats.dropped = dropped.get(a);
+            stats.free = freeCount.get(a);
+            stats.inUse = inUse.get(a);
+            stats.maxInUse = maxInUse.get(a);
+            if (a < SIZE_CLASSES.length) {
+                stats.bytesResident = (long) (stats.free + stats.inUse) * SIZE_CLASSES[a];
             } else {
-                if (arrayToReuse.size() < maxCount) {
-                    arrayToReuse.add(buffer);
+                stats.bytesResident = Math.max(0, oversizeBytes.get(0));
+            }
+            result.add(stats);
+        }
+        return result;
+    }
+
+    public long getBytesResident() {
+        long total = 0;
+        for (PoolStats stats : getStats()) {
+            total += stats.bytesResident;
+        }
+        return total;
+    }
+
+    public void dumpStats() {
+        for (PoolStats stats : getStats()) {
+            FileLog.e("tmessages", stats.toString());
+        }
+        if (leakDetection) {
+            reportLeaks();
+            long now = System.currentTimeMillis();
+            for (LeakReference reference : outstandingBuffers.keySet()) {
+                FileLog.e("tmessages", "buffer " + reference.capacity + " still checked out after " + (now - reference.acquireTime) + " ms", reference.site);
+            }
+        }
+    }
+
+    private void reportLeaks() {
+        LeakReference reference;
+        while ((reference = (LeakReference) leakQueue.poll()) != null) {
+            if (outstandingBuffers.remove(reference) != null) {
+                int sizeClass = getSizeClassForCapacity(reference.capacity);
+                int statIndex = sizeClass != -1 ? sizeClass : SIZE_CLASSES.length;
+                if (inUse.get(statIndex) > 0) {
+                    inUse.decrementAndGet(statIndex);
+                }
+                if (sizeClass == -1) {
+                    oversizeBytes.addAndGet(0, -reference.capacity);
                 }
+                FileLog.e("tmessages", "buffer " + reference.capacity + " was never returned to BuffersStorage", reference.site);
             }
         }
     }
@@ -15,4 +15,10 @@ public class BuildVars {
     public static String HOCKEY_APP_HASH = "your-hockeyapp-api-key-here";
     public static String GCM_SENDER_ID = "760348033672";
     public static String SEND_LOGS_EMAIL = "email@gmail.com";
+
+    // Point a fresh install at a TestServer from TMessagesBenchmarks instead of the Telegram
+    // datacenters. The key is the modulus printed by the server on startup.
+    public static String TEST_SERVER_ADDRESS = null;
+    public static int TEST_SERVER_PORT = 4430;
+    public static String TEST_SERVER_PUBLIC_KEY = null;
 }
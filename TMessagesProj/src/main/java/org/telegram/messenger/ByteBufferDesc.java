@@ -12,9 +12,18 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class ByteBufferDesc extends AbsSerializedData {
+    private static final int STRING_SCRATCH_SIZE = 4096;
+    private static final ThreadLocal<byte[]> stringScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STRING_SCRATCH_SIZE];
+        }
+    };
+
     public ByteBuffer buffer;
     private boolean justCalc = false;
     private int len = 0;
+    Object leakReference;
 
     public ByteBufferDesc(int size) {
         buffer = ByteBuffer.allocateDirect(size);
@@ -353,14 +362,21 @@ public class ByteBufferDesc extends AbsSerializedData {
                 l = getIntFromByte(buffer.get()) | (getIntFromByte(buffer.get()) << 8) | (getIntFromByte(buffer.get()) << 16);
                 sl = 4;
             }
-            byte[] b = new byte[l];
-            buffer.get(b);
+            String result;
+            if (buffer.hasArray()) {
+                result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), l, "UTF-8");
+                buffer.position(buffer.position() + l);
+            } else {
+                byte[] b = l <= STRING_SCRATCH_SIZE ? stringScratch.get() : new byte[l];
+                buffer.get(b, 0, l);
+                result = new String(b, 0, l, "UTF-8");
+            }
             int i = sl;
             while((l + i) % 4 != 0) {
                 buffer.get();
                 i++;
             }
-            return new String(b, "UTF-8");
+            return result;
         } catch (Exception x) {
             FileLog.e("tmessages", "read string error");
         }
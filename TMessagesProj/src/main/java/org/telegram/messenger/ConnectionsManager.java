@@ -24,7 +24,10 @@ import org.telegram.ui.ApplicationLoader;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Locale;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,8 +44,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     private ConcurrentHashMap<Long, Integer> requestsByClass = new ConcurrentHashMap<Long, Integer>(100, 1.0f, 2);
     private volatile int connectionState = 2;
 
-    private ArrayList<RPCRequest> requestQueue = new ArrayList<RPCRequest>();
-    private ArrayList<RPCRequest> runningRequests = new ArrayList<RPCRequest>();
+    private RPCRequestQueue requestQueue = new RPCRequestQueue();
     private ArrayList<Action> actionQueue = new ArrayList<Action>();
 
     private ArrayList<Integer> unknownDatacenterIds = new ArrayList<Integer>();
@@ -53,12 +55,34 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     private TLRPC.TL_auth_exportedAuthorization movingAuthorization;
     public static final int DEFAULT_DATACENTER_ID = Integer.MAX_VALUE;
     private static final int DC_UPDATE_TIME = 60 * 60;
+    private static final int SALT_REFILL_MARGIN = 5 * 60;
+    private static final int MAX_STAGE_DELAY = 60000;
+    private static final int BLOCKED_REQUESTS_RECHECK_DELAY = 1000;
+    private static final int DOWNLOAD_REQUESTS_PER_CONNECTION = 8;
+    private static final int DEFAULT_DOWNLOAD_CONNECTIONS_COUNT = 2;
+    private static final int UPLOAD_REQUESTS_PER_CONNECTION = 8;
+    private static final int DEFAULT_UPLOAD_CONNECTIONS_COUNT = 2;
+
+    //per packet key derivation reuses these instead of allocating
+    private static final ThreadLocal<MessageKeyData> keyDataLocal = new ThreadLocal<MessageKeyData>() {
+        @Override
+        protected MessageKeyData initialValue() {
+            return new MessageKeyData();
+        }
+    };
+    private static final ThreadLocal<byte[]> messageKeyLocal = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16];
+        }
+    };
     protected int currentDatacenterId;
     protected int movingToDatacenterId;
     private long lastOutgoingMessageId = 0;
     private int isTestBackend = 0;
     private int timeDifference = 0;
     private int currentPingTime;
+    private int currentRoundTripTime;
     private int lastDestroySessionRequestTime;
     private boolean updatingDcSettings = false;
     private int updatingDcStartTime = 0;
@@ -77,6 +101,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
     private long lastPauseTime = System.currentTimeMillis();
     private boolean appPaused = true;
+    private long nextStageTime = 0;
+    private int downloadConnectionsCount;
+    private int uploadConnectionsCount;
 
     private volatile long nextCallToken = 1;
 
@@ -96,10 +123,25 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         return localInstance;
     }
 
+    private Runnable timerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (paused) {
+                return;
+            }
+            if (datacenters != null) {
+                MessagesController.getInstance().updateTimerProc();
+            }
+            Utilities.stageQueue.postRunnable(timerRunnable, 1000);
+        }
+    };
+
     private Runnable stageRunnable = new Runnable() {
         @Override
         public void run() {
             Utilities.stageQueue.handler.removeCallbacks(stageRunnable);
+            nextStageTime = 0;
+            long nextTime = System.currentTimeMillis() + MAX_STAGE_DELAY;
             if (datacenters != null) {
                 Datacenter datacenter = datacenterWithId(currentDatacenterId);
                 if (sendingPushPing && lastPushPingTime < System.currentTimeMillis() - 30000 || Math.abs(lastPushPingTime - System.currentTimeMillis()) > 60000 * 3 + 10000) {
@@ -117,13 +159,17 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         generatePing(datacenter, true);
                     }
                 }
+                if (sendingPushPing) {
+                    nextTime = Math.min(nextTime, lastPushPingTime + 30000 + 1);
+                }
+                nextTime = Math.min(nextTime, lastPushPingTime + 60000 * 3 + 1);
             }
 
             long currentTime = System.currentTimeMillis();
             if (lastPauseTime != 0 && lastPauseTime < currentTime - nextSleepTimeout) {
                 boolean dontSleep = !pushMessagesReceived;
                 if (!dontSleep) {
-                    for (RPCRequest request : runningRequests) {
+                    for (RPCRequest request : requestQueue.running()) {
                         if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                             dontSleep = true;
                         } else if (request.retryCount < 10 && (request.runningStartTime + 60 > (int) (currentTime / 1000)) && ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0)) {
@@ -133,7 +179,18 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 }
                 if (!dontSleep) {
-                    for (RPCRequest request : requestQueue) {
+                    dontSleep = !requestQueue.isQueueEmpty(RPCRequestQueue.QUEUE_DOWNLOAD) || !requestQueue.isQueueEmpty(RPCRequestQueue.QUEUE_UPLOAD);
+                }
+                if (!dontSleep) {
+                    for (RPCRequest request : requestQueue.queue(RPCRequestQueue.QUEUE_GENERIC)) {
+                        if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
+                            dontSleep = true;
+                            break;
+                        }
+                    }
+                }
+                if (!dontSleep) {
+                    for (RPCRequest request : requestQueue.queue(RPCRequestQueue.QUEUE_UNLIMITED)) {
                         if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                             dontSleep = true;
                         } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
@@ -151,7 +208,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                     try {
                         paused = true;
-                        Utilities.stageQueue.postRunnable(stageRunnable, 1000);
+                        scheduleStage(nextTime);
                         return;
                     } catch (Exception e) {
                         FileLog.e("tmessages", e);
@@ -164,10 +221,14 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if (paused) {
                 paused = false;
                 FileLog.e("tmessages", "resume network and timers");
+                Utilities.stageQueue.cancelRunnable(timerRunnable);
+                Utilities.stageQueue.postRunnable(timerRunnable);
+            }
+            if (lastPauseTime != 0) {
+                nextTime = Math.min(nextTime, lastPauseTime + nextSleepTimeout + 1);
             }
 
             if (datacenters != null) {
-                MessagesController.getInstance().updateTimerProc();
                 Datacenter datacenter = datacenterWithId(currentDatacenterId);
                 if (datacenter != null) {
                     if (datacenter.authKey != null) {
@@ -175,8 +236,19 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                             lastPingTime = System.currentTimeMillis();
                             generatePing();
                         }
-                        if (!updatingDcSettings && lastDcUpdateTime < (int) (System.currentTimeMillis() / 1000) - DC_UPDATE_TIME) {
-                            updateDcSettings(0);
+                        nextTime = Math.min(nextTime, lastPingTime + 19000 + 1);
+                        if (!updatingDcSettings) {
+                            if (lastDcUpdateTime < (int) (System.currentTimeMillis() / 1000) - DC_UPDATE_TIME) {
+                                updateDcSettings(0);
+                            } else {
+                                nextTime = Math.min(nextTime, (lastDcUpdateTime + DC_UPDATE_TIME + 1) * 1000L);
+                            }
+                        }
+                        int saltRefillTime = datacenter.getSaltRefillTime(SALT_REFILL_MARGIN);
+                        if (saltRefillTime <= getCurrentTime()) {
+                            refillSaltSet(datacenter);
+                        } else if (saltRefillTime != Integer.MAX_VALUE) {
+                            nextTime = Math.min(nextTime, (saltRefillTime - timeDifference + 1) * 1000L);
                         }
                         processRequestQueue(0, 0);
                     } else {
@@ -199,7 +271,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 }
             }
 
-            Utilities.stageQueue.postRunnable(stageRunnable, 1000);
+            scheduleStage(nextTime);
         }
     };
 
@@ -207,6 +279,8 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         currentAppVersion = ApplicationLoader.getAppVersion();
         lastOutgoingMessageId = 0;
         movingToDatacenterId = DEFAULT_DATACENTER_ID;
+        applyDownloadConnectionsCount(DEFAULT_DOWNLOAD_CONNECTIONS_COUNT);
+        applyUploadConnectionsCount(DEFAULT_UPLOAD_CONNECTIONS_COUNT);
         loadSession();
 
         if (!isNetworkOnline()) {
@@ -214,6 +288,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
 
         Utilities.stageQueue.postRunnable(stageRunnable, 1000);
+        Utilities.stageQueue.postRunnable(timerRunnable, 1000);
 
         PowerManager pm = (PowerManager)ApplicationLoader.applicationContext.getSystemService(Context.POWER_SERVICE);
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "lock");
@@ -228,14 +303,32 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         connectionState = state;
     }
 
+    /**
+     * Makes sure stageRunnable runs not later than at the given time. Stage queue only.
+     */
+    private void scheduleStage(long time) {
+        if (nextStageTime != 0 && nextStageTime <= time) {
+            return;
+        }
+        long currentTime = System.currentTimeMillis();
+        if (time > currentTime + MAX_STAGE_DELAY) {
+            time = currentTime + MAX_STAGE_DELAY;
+        }
+        nextStageTime = time;
+        Utilities.stageQueue.cancelRunnable(stageRunnable);
+        Utilities.stageQueue.postRunnable(stageRunnable, (int)Math.max(0, time - currentTime));
+    }
+
     private void resumeNetworkInternal() {
         if (paused) {
             lastPauseTime = System.currentTimeMillis();
             nextSleepTimeout = 30000;
             FileLog.e("tmessages", "wakeup network in background");
+            scheduleStage(System.currentTimeMillis());
         } else if (lastPauseTime != 0) {
             lastPauseTime = System.currentTimeMillis();
             FileLog.e("tmessages", "reset sleep timeout");
+            scheduleStage(lastPauseTime + nextSleepTimeout + 1);
         }
     }
 
@@ -277,6 +370,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     } else {
                         lastPauseTime = System.currentTimeMillis();
                     }
+                    scheduleStage(lastPauseTime + nextSleepTimeout + 1);
                 } else {
                     if (appPaused) {
                         return;
@@ -433,7 +527,14 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
     private void fillDatacenters() {
         if (datacenters.size() == 0) {
-            if (isTestBackend == 0) {
+            if (BuildVars.TEST_SERVER_ADDRESS != null) {
+                for (int a = 1; a <= 5; a++) {
+                    Datacenter datacenter = new Datacenter();
+                    datacenter.datacenterId = a;
+                    datacenter.addAddressAndPort(BuildVars.TEST_SERVER_ADDRESS, BuildVars.TEST_SERVER_PORT);
+                    datacenters.put(datacenter.datacenterId, datacenter);
+                }
+            } else if (isTestBackend == 0) {
                 Datacenter datacenter = new Datacenter();
                 datacenter.datacenterId = 1;
                 datacenter.addAddressAndPort("173.240.5.1", 443);
@@ -521,7 +622,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                             for (long session : sessions) {
                                 data.writeInt64(session);
                             }
-                            editor.putString("sessionsToDestroy", Base64.encodeToString(data.toByteArray(), Base64.DEFAULT));
+                            editor.putString("sessionsToDestroy", Base64.encodeToString(data.array(), 0, data.length(), Base64.DEFAULT));
                         } else {
                             editor.remove("sessionsToDestroy");
                         }
@@ -532,7 +633,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                             for (Datacenter datacenter : datacenters.values()) {
                                 datacenter.SerializeToStream(data);
                             }
-                            editor.putString("datacenters", Base64.encodeToString(data.toByteArray(), Base64.DEFAULT));
+                            editor.putString("datacenters", Base64.encodeToString(data.array(), 0, data.length(), Base64.DEFAULT));
                         } else {
                             editor.remove("datacenters");
                         }
@@ -555,14 +656,14 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     void clearRequestsForRequestClass(int requestClass, Datacenter datacenter) {
-        for (RPCRequest request : runningRequests) {
+        for (RPCRequest request : requestQueue.running()) {
             Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
             if ((request.flags & requestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                request.runningMessageId = 0;
+                requestQueue.setRunningMessageId(request, 0);
                 request.runningMessageSeqNo = 0;
                 request.runningStartTime = 0;
                 request.runningMinStartTime = 0;
-                request.transportChannelToken = 0;
+                requestQueue.setTransportChannelToken(request, 0);
             }
         }
     }
@@ -571,19 +672,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                while (requestQueue.size() != 0) {
-                    RPCRequest request = requestQueue.get(0);
-                    requestQueue.remove(0);
-                    if (request.completionBlock != null) {
-                        TLRPC.TL_error implicitError = new TLRPC.TL_error();
-                        implicitError.code = -1000;
-                        implicitError.text = "";
-                        request.completionBlock.run(null, implicitError);
-                    }
-                }
-                while (runningRequests.size() != 0) {
-                    RPCRequest request = runningRequests.get(0);
-                    runningRequests.remove(0);
+                for (RPCRequest request : requestQueue.clear()) {
                     if (request.completionBlock != null) {
                         TLRPC.TL_error implicitError = new TLRPC.TL_error();
                         implicitError.code = -1000;
@@ -850,6 +939,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     public long performRpc(final TLObject rpc, final RPCRequest.RPCRequestDelegate completionBlock, final RPCRequest.RPCQuickAckDelegate quickAckBlock, final boolean requiresCompletion, final int requestClass, final int datacenterId, final boolean runQueue) {
+        return performRpc(rpc, completionBlock, quickAckBlock, requiresCompletion, requestClass, datacenterId, runQueue, RPCRequest.priorityForRequest(rpc));
+    }
+
+    public long performRpc(final TLObject rpc, final RPCRequest.RPCRequestDelegate completionBlock, final RPCRequest.RPCQuickAckDelegate quickAckBlock, final boolean requiresCompletion, final int requestClass, final int datacenterId, final boolean runQueue, final int priority) {
         if (!UserConfig.isClientActivated() && (requestClass & RPCRequest.RPCRequestClassWithoutLogin) == 0) {
             FileLog.e("tmessages", "can't do request without login " + rpc);
             return 0;
@@ -863,6 +956,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 RPCRequest request = new RPCRequest();
                 request.token = requestToken;
                 request.flags = requestClass;
+                request.priority = priority;
 
                 request.runningDatacenterId = datacenterId;
 
@@ -872,17 +966,88 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 request.quickAckBlock = quickAckBlock;
                 request.requiresCompletion = requiresCompletion;
 
-                requestQueue.add(request);
+                requestQueue.enqueue(request);
 
                 if (runQueue) {
                     processRequestQueue(0, 0);
                 }
+                if (!runQueue || paused) {
+                    scheduleStage(System.currentTimeMillis());
+                }
             }
         });
 
         return requestToken;
     }
 
+    /**
+     * How many connections per datacenter file downloads are spread over, parts of one file go
+     * out on all of them in parallel. Connections already open are kept when the count shrinks.
+     */
+    public void setDownloadConnectionsCount(final int count) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                applyDownloadConnectionsCount(count);
+                processRequestQueue(0, 0);
+            }
+        });
+    }
+
+    public int getDownloadConnectionsCount() {
+        return downloadConnectionsCount;
+    }
+
+    private void applyDownloadConnectionsCount(int count) {
+        downloadConnectionsCount = Math.max(1, Math.min(Datacenter.MAX_DOWNLOAD_CONNECTIONS, count));
+        requestQueue.setRunningLimit(RPCRequestQueue.QUEUE_DOWNLOAD, downloadConnectionsCount * DOWNLOAD_REQUESTS_PER_CONNECTION);
+    }
+
+    /**
+     * Same as {@link #setDownloadConnectionsCount} for the parts of file uploads.
+     */
+    public void setUploadConnectionsCount(final int count) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                applyUploadConnectionsCount(count);
+                processRequestQueue(0, 0);
+            }
+        });
+    }
+
+    public int getUploadConnectionsCount() {
+        return uploadConnectionsCount;
+    }
+
+    private void applyUploadConnectionsCount(int count) {
+        uploadConnectionsCount = Math.max(1, Math.min(Datacenter.MAX_UPLOAD_CONNECTIONS, count));
+        requestQueue.setRunningLimit(RPCRequestQueue.QUEUE_UPLOAD, uploadConnectionsCount * UPLOAD_REQUESTS_PER_CONNECTION);
+    }
+
+    /**
+     * Download or upload connection with the fewest running requests of the class to the
+     * datacenter, lower numbers win ties so small transfers don't open more connections than
+     * they need.
+     */
+    private int selectConnectionNum(int requestClass, int datacenterId, int connectionsCount) {
+        int queue = requestClass == RPCRequest.RPCRequestClassDownloadMedia ? RPCRequestQueue.QUEUE_DOWNLOAD : RPCRequestQueue.QUEUE_UPLOAD;
+        int[] counts = new int[connectionsCount];
+        for (int a = 0; a < connectionsCount; a++) {
+            counts[a] = requestQueue.getConnectionRunningCount(queue, datacenterId, a);
+            if (datacenterId == currentDatacenterId) {
+                counts[a] += requestQueue.getConnectionRunningCount(queue, DEFAULT_DATACENTER_ID, a);
+            }
+        }
+        int num = 0;
+        for (int a = 1; a < counts.length; a++) {
+            if (counts[a] < counts[num]) {
+                num = a;
+            }
+        }
+        return num;
+    }
+
     public void cancelRpc(final long token, final boolean notifyServer) {
         cancelRpc(token, notifyServer, false);
     }
@@ -896,39 +1061,31 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             public void run() {
                 boolean found = false;
 
-                for (int i = 0; i < requestQueue.size(); i++) {
-                    RPCRequest request = requestQueue.get(i);
-                    if (request.token == token) {
-                        found = true;
-                        request.cancelled = true;
-                        FileLog.d("tmessages", "===== Cancelled queued rpc request " + request.rawRequest);
-                        requestQueue.remove(i);
-                        break;
-                    }
+                RPCRequest queuedRequest = requestQueue.removeQueued(token);
+                if (queuedRequest != null) {
+                    found = true;
+                    queuedRequest.cancelled = true;
+                    FileLog.d("tmessages", "===== Cancelled queued rpc request " + queuedRequest.rawRequest);
                 }
 
                 if (!ifNotSent) {
-                    for (int i = 0; i < runningRequests.size(); i++) {
-                        RPCRequest request = runningRequests.get(i);
-                        if (request.token == token) {
-                            found = true;
-
-                            FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
-
-                            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                                if (notifyServer) {
-                                    TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
-                                    dropAnswer.req_msg_id = request.runningMessageId;
-                                    performRpc(dropAnswer, null, false, request.flags);
-                                }
-                            }
+                    RPCRequest request = requestQueue.removeRunning(token);
+                    if (request != null) {
+                        found = true;
 
-                            request.cancelled = true;
-                            request.rawRequest.freeResources();
-                            request.rpcRequest.freeResources();
-                            runningRequests.remove(i);
-                            break;
+                        FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
+
+                        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                            if (notifyServer) {
+                                TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
+                                dropAnswer.req_msg_id = request.runningMessageId;
+                                performRpc(dropAnswer, null, false, request.flags);
+                            }
                         }
+
+                        request.cancelled = true;
+                        request.rawRequest.freeResources();
+                        request.rpcRequest.freeResources();
                     }
                     if (!found) {
                         FileLog.d("tmessages", "***** Warning: cancelling unknown request");
@@ -981,6 +1138,34 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         return (int)(System.currentTimeMillis() / 1000) + timeDifference;
     }
 
+    private final RPCRequestQueue.ChannelTokenChecker channelTokenChecker = new RPCRequestQueue.ChannelTokenChecker() {
+        @Override
+        public boolean isChannelTokenValid(RPCRequest request) {
+            int datacenterId = request.runningDatacenterId;
+            if (datacenterId == DEFAULT_DATACENTER_ID) {
+                if (movingToDatacenterId != DEFAULT_DATACENTER_ID) {
+                    return true;
+                }
+                datacenterId = currentDatacenterId;
+            }
+            Datacenter datacenter = datacenterWithId(datacenterId);
+            if (datacenter == null) {
+                return false;
+            }
+            TcpConnection connection;
+            if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                connection = datacenter.getDownloadConnection(request.connectionNum, ConnectionsManager.this);
+            } else {
+                connection = datacenter.getUploadConnection(request.connectionNum, ConnectionsManager.this);
+            }
+            return connection.channelToken != 0 && connection.channelToken == request.transportChannelToken;
+        }
+    };
+
+    /**
+     * Sends queued requests and resends running ones that need it. Media requests waiting for
+     * their answer on a live connection are parked in requestQueue and not walked here.
+     */
     private void processRequestQueue(int requestClass, int _datacenterId) {
         boolean haveNetwork = true;//isNetworkOnline();
 
@@ -996,8 +1181,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
 
         int currentTime = (int)(System.currentTimeMillis() / 1000);
-        for (int i = 0; i < runningRequests.size(); i++) {
-            RPCRequest request = runningRequests.get(i);
+        int nextCheckTime = Integer.MAX_VALUE;
+        boolean hasBlockedRequests = false;
+        ArrayList<RPCRequest> requestsToRequeue = null;
+        for (RPCRequest request : requestQueue.activeRunning(channelTokenChecker)) {
 
             int datacenterId = request.runningDatacenterId;
             if (datacenterId == DEFAULT_DATACENTER_ID) {
@@ -1016,10 +1203,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 }
                 if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
                     FileLog.e("tmessages", "move " + request.rawRequest + " to requestQueue");
-                    requestQueue.add(request);
-                    runningRequests.remove(i);
-                    i--;
+                    if (requestsToRequeue == null) {
+                        requestsToRequeue = new ArrayList<RPCRequest>();
+                    }
+                    requestsToRequeue.add(request);
                     continue;
+                } else if (requestStartTime != 0) {
+                    nextCheckTime = Math.min(nextCheckTime, requestStartTime + timeout + 1);
                 }
             }
 
@@ -1054,9 +1244,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
                 connection = requestDatacenter.getGenericConnection(this);
             } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
+                connection = requestDatacenter.getDownloadConnection(request.connectionNum, this);
             } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0 ) {
-                connection = requestDatacenter.getUploadConnection(this);
+                connection = requestDatacenter.getUploadConnection(request.connectionNum, this);
             }
 
             if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
@@ -1071,14 +1261,15 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
 
             boolean forceThisRequest = (request.flags & requestClass) != 0 && requestDatacenter.datacenterId == _datacenterId;
+            if (forceThisRequest && (request.flags & RPCRequest.RPCRequestClassGeneric) == 0 && connection.channelToken != 0 && request.transportChannelToken == connection.channelToken) {
+                //another connection of the pool came up, this one is still waiting for its answer
+                forceThisRequest = false;
+            }
 
             if (request.rawRequest instanceof TLRPC.TL_get_future_salts || request.rawRequest instanceof TLRPC.TL_destroy_session) {
-                if (request.runningMessageId != 0) {
-                    request.addRespondMessageId(request.runningMessageId);
-                }
-                request.runningMessageId = 0;
+                requestQueue.retireRunningMessageId(request);
                 request.runningMessageSeqNo = 0;
-                request.transportChannelToken = 0;
+                requestQueue.setTransportChannelToken(request, 0);
                 forceThisRequest = false;
             }
 
@@ -1105,7 +1296,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
                 if (request.runningMessageSeqNo == 0) {
                     request.runningMessageSeqNo = connection.generateMessageSeqNo(true);
-                    request.runningMessageId = generateMessageId();
+                    requestQueue.setRunningMessageId(request, generateMessageId());
                 }
                 networkMessage.protoMessage.msg_id = request.runningMessageId;
                 networkMessage.protoMessage.seqno = request.runningMessageSeqNo;
@@ -1113,23 +1304,39 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 networkMessage.protoMessage.body = request.rpcRequest;
                 networkMessage.rawRequest = request.rawRequest;
                 networkMessage.requestId = request.token;
+                networkMessage.priority = request.priority;
 
                 request.runningStartTime = currentTime;
 
                 if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    request.transportChannelToken = connection.channelToken;
+                    requestQueue.setTransportChannelToken(request, connection.channelToken);
                     addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
                 } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    request.transportChannelToken = connection.channelToken;
+                    requestQueue.setTransportChannelToken(request, connection.channelToken);
                     ArrayList<NetworkMessage> arr = new ArrayList<NetworkMessage>();
                     arr.add(networkMessage);
                     proceedToSendingMessages(arr, connection, false);
                 } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                    request.transportChannelToken = connection.channelToken;
+                    requestQueue.setTransportChannelToken(request, connection.channelToken);
                     ArrayList<NetworkMessage> arr = new ArrayList<NetworkMessage>();
                     arr.add(networkMessage);
                     proceedToSendingMessages(arr, connection, false);
                 }
+                nextCheckTime = Math.min(nextCheckTime, currentTime + (int)maxTimeout + 1);
+            } else if (request.transportChannelToken <= 0 || request.transportChannelToken != connection.channelToken) {
+                nextCheckTime = Math.min(nextCheckTime, Math.max(request.runningStartTime + (int)maxTimeout + 1, request.runningMinStartTime + 1));
+            }
+        }
+
+        if (requestsToRequeue != null) {
+            for (RPCRequest request : requestsToRequeue) {
+                //runningStartTime stays, sendQueuedRequest moves the request to another datacenter by it
+                requestQueue.removeRunning(request.token);
+                requestQueue.setRunningMessageId(request, 0);
+                request.runningMessageSeqNo = 0;
+                request.runningMinStartTime = 0;
+                requestQueue.setTransportChannelToken(request, 0);
+                requestQueue.enqueue(request);
             }
         }
 
@@ -1155,169 +1362,27 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
         }
 
-        int genericRunningRequestCount = 0;
-        int uploadRunningRequestCount = 0;
-        int downloadRunningRequestCount = 0;
-
-        for (RPCRequest request : runningRequests) {
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                genericRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                uploadRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                downloadRunningRequestCount++;
-            }
-        }
-
-        for (int i = 0; i < requestQueue.size(); i++) {
-            RPCRequest request = requestQueue.get(i);
-            if (request.cancelled) {
-                requestQueue.remove(i);
-                i--;
-                continue;
-            }
-
-            int datacenterId = request.runningDatacenterId;
-            if (datacenterId == DEFAULT_DATACENTER_ID) {
-                if (movingToDatacenterId != DEFAULT_DATACENTER_ID && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
-                    continue;
-                }
-                datacenterId = currentDatacenterId;
-            }
-
-            if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
-                int requestStartTime = request.runningStartTime;
-                int timeout = 30;
-                if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
-                    requestStartTime = updatingDcStartTime;
-                    updatingDcStartTime = currentTime;
-                    timeout = 60;
-                } else {
-                    request.runningStartTime = 0;
-                }
-                if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
-                    ArrayList<Datacenter> allDc = new ArrayList<Datacenter>(datacenters.values());
-                    for (int a = 0; a < allDc.size(); a++) {
-                        Datacenter dc = allDc.get(a);
-                        if (dc.datacenterId == datacenterId) {
-                            allDc.remove(a);
-                            break;
-                        }
-                    }
-                    Datacenter newDc = allDc.get(Math.abs(Utilities.random.nextInt() % allDc.size()));
-                    datacenterId = newDc.datacenterId;
-                    if (!(request.rawRequest instanceof TLRPC.TL_help_getConfig)) {
-                        currentDatacenterId = datacenterId;
-                    } else {
-                        request.runningDatacenterId = datacenterId;
-                    }
-                }
-            }
-
-            Datacenter requestDatacenter = datacenterWithId(datacenterId);
-            if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
-                request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
-            }
-
-            if (requestDatacenter == null) {
-                unknownDatacenterIds.add(datacenterId);
-                continue;
-            } else if (requestDatacenter.authKey == null) {
-                neededDatacenterIds.add(datacenterId);
-                continue;
-            } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
-                unauthorizedDatacenterIds.add(datacenterId);
-                continue;
-            }
-
-            TcpConnection connection = null;
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                connection = requestDatacenter.getGenericConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                connection = requestDatacenter.getUploadConnection(this);
+        final int queueTime = currentTime;
+        RPCRequestQueue.RequestDispatcher dispatcher = new RPCRequestQueue.RequestDispatcher() {
+            @Override
+            public boolean dispatch(RPCRequest request) {
+                return sendQueuedRequest(request, queueTime);
             }
-
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && connection.channelToken == 0) {
+        };
+        for (int a = 0; a < RPCRequestQueue.QUEUES_COUNT; a++) {
+            if (!haveNetwork && (a == RPCRequestQueue.QUEUE_DOWNLOAD || a == RPCRequestQueue.QUEUE_UPLOAD)) {
                 continue;
             }
-
-            if (request.requiresCompletion) {
-                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    if (genericRunningRequestCount >= 60) {
-                        continue;
-                    }
-                    genericRunningRequestCount++;
-                } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                    if (!haveNetwork || uploadRunningRequestCount >= 5) {
-                        continue;
-                    }
-                    uploadRunningRequestCount++;
-                } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    if (!haveNetwork || downloadRunningRequestCount >= 5) {
-                        continue;
-                    }
-                    downloadRunningRequestCount++;
-                }
-            }
-
-            long messageId = generateMessageId();
-
-            boolean canCompress = (request.flags & RPCRequest.RPCRequestClassCanCompress) != 0;
-
-            SerializedData os = new SerializedData(!canCompress);
-            request.rpcRequest.serializeToStream(os);
-            int requestLength = os.length();
-
-            if (requestLength != 0) {
-                if (canCompress) {
-                    try {
-                        byte[] data = Utilities.compress(os.toByteArray());
-                        if (data.length < requestLength) {
-                            TLRPC.TL_gzip_packed packed = new TLRPC.TL_gzip_packed();
-                            packed.packed_data = data;
-                            request.rpcRequest = packed;
-                            os = new SerializedData(true);
-                            packed.serializeToStream(os);
-                            requestLength = os.length();
-                        }
-                    } catch (Exception e) {
-                        FileLog.e("tmessages", e);
-                    }
-                }
-
-                NetworkMessage networkMessage = new NetworkMessage();
-                networkMessage.protoMessage = new TLRPC.TL_protoMessage();
-                networkMessage.protoMessage.msg_id = messageId;
-                networkMessage.protoMessage.seqno = connection.generateMessageSeqNo(true);
-                networkMessage.protoMessage.bytes = requestLength;
-                networkMessage.protoMessage.body = request.rpcRequest;
-                networkMessage.rawRequest = request.rawRequest;
-                networkMessage.requestId = request.token;
-
-                request.runningMessageId = messageId;
-                request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
-                request.serializedLength = requestLength;
-                request.runningStartTime = (int)(System.currentTimeMillis() / 1000);
-                request.transportChannelToken = connection.channelToken;
-                if (request.requiresCompletion) {
-                    runningRequests.add(request);
-                }
-
-                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
-                } else {
-                    ArrayList<NetworkMessage> arr = new ArrayList<NetworkMessage>();
-                    arr.add(networkMessage);
-                    proceedToSendingMessages(arr, connection, false);
-                }
-            } else {
-                FileLog.e("tmessages", "***** Couldn't serialize " + request.rawRequest);
+            if (requestQueue.dispatch(a, dispatcher)) {
+                hasBlockedRequests = true;
             }
+        }
 
-            requestQueue.remove(i);
-            i--;
+        if (hasBlockedRequests) {
+            scheduleStage(System.currentTimeMillis() + BLOCKED_REQUESTS_RECHECK_DELAY);
+        }
+        if (nextCheckTime != Integer.MAX_VALUE) {
+            scheduleStage(nextCheckTime * 1000L);
         }
 
         for (Datacenter datacenter : datacenters.values()) {
@@ -1334,6 +1399,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
                 boolean hasSendMessage = false;
                 ArrayList<NetworkMessage> arr = genericMessagesToDatacenters.get(iter);
+                Collections.sort(arr, networkMessagePriorityComparator);
                 for (NetworkMessage networkMessage : arr) {
                     TLRPC.TL_protoMessage message = networkMessage.protoMessage;
 
@@ -1366,7 +1432,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                             }
 
                             long maxRequestId = 0;
-                            for (RPCRequest request : runningRequests) {
+                            for (RPCRequest request : requestQueue.running()) {
                                 if (request.rawRequest instanceof TLRPC.TL_messages_sendMessage ||
                                         request.rawRequest instanceof TLRPC.TL_messages_sendMedia ||
                                         request.rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
@@ -1449,6 +1515,145 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
     }
 
+    /**
+     * Sends a queued request if its datacenter and connection are ready. Returns true if the
+     * request has left the queue.
+     */
+    private boolean sendQueuedRequest(RPCRequest request, int currentTime) {
+        int datacenterId = request.runningDatacenterId;
+        if (datacenterId == DEFAULT_DATACENTER_ID) {
+            if (movingToDatacenterId != DEFAULT_DATACENTER_ID && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+                return false;
+            }
+            datacenterId = currentDatacenterId;
+        }
+
+        if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
+            int requestStartTime = request.runningStartTime;
+            int timeout = 30;
+            if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
+                requestStartTime = updatingDcStartTime;
+                updatingDcStartTime = currentTime;
+                timeout = 60;
+            } else {
+                request.runningStartTime = 0;
+            }
+            if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
+                ArrayList<Datacenter> allDc = new ArrayList<Datacenter>(datacenters.values());
+                for (int a = 0; a < allDc.size(); a++) {
+                    Datacenter dc = allDc.get(a);
+                    if (dc.datacenterId == datacenterId) {
+                        allDc.remove(a);
+                        break;
+                    }
+                }
+                Datacenter newDc = allDc.get(Math.abs(Utilities.random.nextInt() % allDc.size()));
+                datacenterId = newDc.datacenterId;
+                if (!(request.rawRequest instanceof TLRPC.TL_help_getConfig)) {
+                    currentDatacenterId = datacenterId;
+                } else {
+                    request.runningDatacenterId = datacenterId;
+                }
+            }
+        }
+
+        Datacenter requestDatacenter = datacenterWithId(datacenterId);
+        if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
+            request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
+        }
+
+        if (requestDatacenter == null) {
+            unknownDatacenterIds.add(datacenterId);
+            return false;
+        } else if (requestDatacenter.authKey == null) {
+            neededDatacenterIds.add(datacenterId);
+            return false;
+        } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+            unauthorizedDatacenterIds.add(datacenterId);
+            return false;
+        }
+
+        TcpConnection connection = null;
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            connection = requestDatacenter.getGenericConnection(this);
+        } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            request.connectionNum = selectConnectionNum(RPCRequest.RPCRequestClassDownloadMedia, requestDatacenter.datacenterId, downloadConnectionsCount);
+            connection = requestDatacenter.getDownloadConnection(request.connectionNum, this);
+        } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+            request.connectionNum = selectConnectionNum(RPCRequest.RPCRequestClassUploadMedia, requestDatacenter.datacenterId, uploadConnectionsCount);
+            connection = requestDatacenter.getUploadConnection(request.connectionNum, this);
+        }
+
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && connection.channelToken == 0) {
+            return false;
+        }
+
+        long messageId = generateMessageId();
+
+        boolean canCompress = (request.flags & RPCRequest.RPCRequestClassCanCompress) != 0;
+
+        SerializedData os = new SerializedData(!canCompress);
+        request.rpcRequest.serializeToStream(os);
+        int requestLength = os.length();
+
+        if (requestLength != 0) {
+            if (canCompress) {
+                try {
+                    byte[] data = Utilities.compress(os.toByteArray());
+                    if (data.length < requestLength) {
+                        TLRPC.TL_gzip_packed packed = new TLRPC.TL_gzip_packed();
+                        packed.packed_data = data;
+                        request.rpcRequest = packed;
+                        os = new SerializedData(true);
+                        packed.serializeToStream(os);
+                        requestLength = os.length();
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+
+            NetworkMessage networkMessage = new NetworkMessage();
+            networkMessage.protoMessage = new TLRPC.TL_protoMessage();
+            networkMessage.protoMessage.msg_id = messageId;
+            networkMessage.protoMessage.seqno = connection.generateMessageSeqNo(true);
+            networkMessage.protoMessage.bytes = requestLength;
+            networkMessage.protoMessage.body = request.rpcRequest;
+            networkMessage.rawRequest = request.rawRequest;
+            networkMessage.requestId = request.token;
+            networkMessage.priority = request.priority;
+
+            requestQueue.setRunningMessageId(request, messageId);
+            request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
+            request.serializedLength = requestLength;
+            request.runningStartTime = (int)(System.currentTimeMillis() / 1000);
+            requestQueue.setTransportChannelToken(request, connection.channelToken);
+            if (request.requiresCompletion) {
+                requestQueue.addRunning(request);
+            }
+
+            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
+            } else {
+                ArrayList<NetworkMessage> arr = new ArrayList<NetworkMessage>();
+                arr.add(networkMessage);
+                proceedToSendingMessages(arr, connection, false);
+            }
+        } else {
+            FileLog.e("tmessages", "***** Couldn't serialize " + request.rawRequest);
+        }
+
+        return true;
+    }
+
+    //stable, keeps the submission order inside a priority
+    private static final Comparator<NetworkMessage> networkMessagePriorityComparator = new Comparator<NetworkMessage>() {
+        @Override
+        public int compare(NetworkMessage lhs, NetworkMessage rhs) {
+            return lhs.priority < rhs.priority ? -1 : (lhs.priority == rhs.priority ? 0 : 1);
+        }
+    };
+
     void addMessageToDatacenter(int datacenterId, NetworkMessage message) {
         ArrayList<NetworkMessage> arr = genericMessagesToDatacenters.get(datacenterId);
         if (arr == null) {
@@ -1493,7 +1698,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         sendMessagesToTransport(messages, connection, reportAck);
     }
 
-    void sendMessagesToTransport(ArrayList<NetworkMessage> messagesToSend, TcpConnection connection, boolean reportAck) {
+    void sendMessagesToTransport(ArrayList<NetworkMessage> messagesToSend, final TcpConnection connection, boolean reportAck) {
         if (messagesToSend.size() == 0) {
             return;
         }
@@ -1502,6 +1707,56 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             return;
         }
 
+        final ContainerPacker packer = connection.containerPacker;
+        if (!packer.lingeringMessages.isEmpty() && packer.lingeringSessionId != connection.getSissionId()) {
+            FileLog.e("tmessages", "drop " + packer.lingeringMessages.size() + " lingering messages of previous session");
+            packer.lingeringMessages.clear();
+            packer.lingeringBytes = 0;
+            packer.lingeringReportAck = false;
+        }
+
+        boolean sendNow = ContainerPacker.lingerTime <= 0;
+        for (NetworkMessage networkMessage : messagesToSend) {
+            packer.lingeringMessages.add(networkMessage);
+            packer.lingeringBytes += networkMessage.protoMessage.bytes;
+            if (networkMessage.priority == RPCRequest.RPCRequestPriorityInteractive) {
+                sendNow = true;
+            }
+        }
+        packer.lingeringReportAck |= reportAck;
+        packer.lingeringSessionId = connection.getSissionId();
+
+        if (sendNow || packer.lingeringBytes >= packer.getContainerLimit(currentRoundTripTime)) {
+            flushLingeringMessages(connection);
+        } else if (!packer.flushScheduled) {
+            packer.flushScheduled = true;
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    packer.flushScheduled = false;
+                    flushLingeringMessages(connection);
+                }
+            }, ContainerPacker.lingerTime);
+        }
+    }
+
+    private void flushLingeringMessages(TcpConnection connection) {
+        ContainerPacker packer = connection.containerPacker;
+        if (packer.lingeringMessages.isEmpty()) {
+            return;
+        }
+        ArrayList<NetworkMessage> messagesToSend = new ArrayList<NetworkMessage>(packer.lingeringMessages);
+        boolean reportAck = packer.lingeringReportAck;
+        packer.lingeringMessages.clear();
+        packer.lingeringBytes = 0;
+        packer.lingeringReportAck = false;
+        if (packer.lingeringSessionId != connection.getSissionId()) {
+            FileLog.e("tmessages", "drop " + messagesToSend.size() + " lingering messages of previous session");
+            return;
+        }
+        Collections.sort(messagesToSend, networkMessagePriorityComparator);
+
+        int containerLimit = packer.getContainerLimit(currentRoundTripTime);
         ArrayList<NetworkMessage> currentMessages = new ArrayList<NetworkMessage>();
 
         int currentSize = 0;
@@ -1513,7 +1768,8 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
             currentSize += protoMessage.bytes;
 
-            if (currentSize >= 3 * 1024 || a == messagesToSend.size() - 1) {
+            boolean last = a == messagesToSend.size() - 1;
+            if (last || currentMessages.size() >= ContainerPacker.MAX_CONTAINER_MESSAGES || currentSize + messagesToSend.get(a + 1).protoMessage.bytes > containerLimit) {
                 ArrayList<Integer> quickAckId = new ArrayList<Integer>();
                 ByteBufferDesc transportData = createConnectionData(currentMessages, quickAckId, connection);
 
@@ -1521,7 +1777,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     if (reportAck && quickAckId.size() != 0) {
                         ArrayList<Long> requestIds = new ArrayList<Long>();
 
-                        for (NetworkMessage message : messagesToSend) {
+                        for (NetworkMessage message : currentMessages) {
                             if (message.requestId != 0) {
                                 requestIds.add(message.requestId);
                             }
@@ -1538,6 +1794,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         }
                     }
 
+                    packer.addContainer(currentMessages.size(), transportData.limit(), containerLimit);
+                    if (BuildVars.DEBUG_VERSION && packer.getContainersCount() % 100 == 0) {
+                        FileLog.d("tmessages", connection + " " + packer.getStats());
+                    }
                     connection.sendData(transportData, true, reportAck);
                 } else {
                     FileLog.e("tmessages", "***** Transport data is nil");
@@ -1555,9 +1815,8 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             return null;
         }
 
-        long messageId;
-        TLObject messageBody;
-        int messageSeqNo;
+        ArrayList<TLRPC.TL_protoMessage> protoMessages = new ArrayList<TLRPC.TL_protoMessage>(messages.size());
+        boolean forceContainer = false;
 
         if (messages.size() == 1) {
             NetworkMessage networkMessage = messages.get(0);
@@ -1583,26 +1842,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
             if (msg_time < currentTime - 30000 || msg_time > currentTime + 25000) {
                 FileLog.d("tmessages", "wrap in messages continaer");
-                TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
-                messageContainer.messages = new ArrayList<TLRPC.TL_protoMessage>();
-                messageContainer.messages.add(message);
-
-                messageId = generateMessageId();
-                messageBody = messageContainer;
-                messageSeqNo = connection.generateMessageSeqNo(false);
-            } else {
-                messageId = message.msg_id;
-                messageBody = message.body;
-                messageSeqNo = message.seqno;
+                forceContainer = true;
             }
+            protoMessages.add(message);
         } else {
-            TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
-
-            ArrayList<TLRPC.TL_protoMessage> containerMessages = new ArrayList<TLRPC.TL_protoMessage>(messages.size());
-
             for (NetworkMessage networkMessage : messages) {
                 TLRPC.TL_protoMessage message = networkMessage.protoMessage;
-                containerMessages.add(message);
+                protoMessages.add(message);
                 if (BuildVars.DEBUG_VERSION) {
                     if (message.body instanceof TLRPC.invokeWithLayer14) {
                         FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer14)message.body).query);
@@ -1618,73 +1864,130 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 }
             }
+        }
 
-            messageContainer.messages = containerMessages;
+        long containerMessageId = 0;
+        int containerSeqNo = 0;
+        if (protoMessages.size() > 1 || forceContainer) {
+            containerMessageId = generateMessageId();
+            containerSeqNo = connection.generateMessageSeqNo(false);
+        }
+        long serverSalt = datacenter.selectServerSalt(getCurrentTime());
+        return writeEncryptedMessages(protoMessages, forceContainer, containerMessageId, containerSeqNo, datacenter.authKey, datacenter.authKeyId, serverSalt, connection.getSissionId(), quickAckId, keyDataLocal.get(), Utilities.random);
+    }
 
-            messageId = generateMessageId();
+    /**
+     * Everything createConnectionData does once the messages are picked: a single message is
+     * sent as it is unless forceContainer is set, otherwise the messages go into a container
+     * with the given id and seqno. The body is written with its message key and random padding
+     * into a pooled buffer and encrypted. Returns null if the body can't be written.
+     */
+    static ByteBufferDesc writeEncryptedMessages(ArrayList<TLRPC.TL_protoMessage> messages, boolean forceContainer, long containerMessageId, int containerSeqNo, byte[] authKey, long authKeyId, long serverSalt, long sessionId, ArrayList<Integer> quickAckId, MessageKeyData keyData, Random paddingRandom) {
+        long messageId;
+        TLObject messageBody;
+        int messageSeqNo;
+        int messageBodyLength;
+
+        if (messages.size() == 1 && !forceContainer) {
+            TLRPC.TL_protoMessage message = messages.get(0);
+            messageId = message.msg_id;
+            messageBody = message.body;
+            messageSeqNo = message.seqno;
+            messageBodyLength = message.bytes;
+        } else {
+            TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
+            messageContainer.messages = messages;
+            messageBodyLength = 4 + 4;
+            for (TLRPC.TL_protoMessage message : messages) {
+                messageBodyLength += 8 + 4 + 4 + message.bytes;
+            }
+            messageId = containerMessageId;
             messageBody = messageContainer;
-            messageSeqNo = connection.generateMessageSeqNo(false);
+            messageSeqNo = containerSeqNo;
         }
 
-        ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
-        messageBody.serializeToStream(sizeBuffer);
-
-        ByteBufferDesc innerOs = BuffersStorage.getInstance().getFreeBuffer(8 + 8 + 8 + 4 + 4 + sizeBuffer.length());
-
-        long serverSalt = datacenter.selectServerSalt(getCurrentTime());
-        if (serverSalt == 0) {
-            innerOs.writeInt64(0);
-        } else {
-            innerOs.writeInt64(serverSalt);
+        ByteBufferDesc data = writeEncryptedMessage(authKey, authKeyId, serverSalt, sessionId, messageId, messageSeqNo, messageBody, messageBodyLength, quickAckId, keyData, paddingRandom);
+        if (data == null) {
+            ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+            messageBody.serializeToStream(sizeBuffer);
+            FileLog.e("tmessages", "***** Cached message length " + messageBodyLength + " doesn't match serialized length " + sizeBuffer.length());
+            data = writeEncryptedMessage(authKey, authKeyId, serverSalt, sessionId, messageId, messageSeqNo, messageBody, sizeBuffer.length(), quickAckId, keyData, paddingRandom);
         }
-        innerOs.writeInt64(connection.getSissionId());
-        innerOs.writeInt64(messageId);
-        innerOs.writeInt32(messageSeqNo);
-        innerOs.writeInt32(sizeBuffer.length());
-        messageBody.serializeToStream(innerOs);
+        return data;
+    }
 
-        byte[] messageKeyFull = Utilities.computeSHA1(innerOs.buffer, 0, innerOs.limit());
-        byte[] messageKey = new byte[16];
-        System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
+    private static ByteBufferDesc writeEncryptedMessage(byte[] authKey, long authKeyId, long serverSalt, long sessionId, long messageId, int messageSeqNo, TLObject messageBody, int messageBodyLength, ArrayList<Integer> quickAckId, MessageKeyData keyData, Random paddingRandom) {
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(getEncryptedMessageLength(messageBodyLength));
+        if (!writeMessageData(data, authKey, authKeyId, serverSalt, sessionId, messageId, messageSeqNo, messageBody, messageBodyLength, quickAckId, keyData)) {
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            return null;
+        }
 
-        if (quickAckId != null) {
-            SerializedData data = new SerializedData(messageKeyFull);
-            quickAckId.add(data.readInt32() & 0x7fffffff);
+        int zeroCount = data.limit() - data.position();
+        if (zeroCount != 0) {
+            byte[] b = new byte[zeroCount];
+            paddingRandom.nextBytes(b);
+            data.writeRaw(b);
         }
 
-        MessageKeyData keyData = Utilities.generateMessageKeyData(datacenter.authKey, messageKey, false);
+        Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, true, false, 8 + 16, data.limit() - 8 - 16);
+
+        data.position(0);
+        return data;
+    }
 
+    static int getEncryptedMessageLength(int messageBodyLength) {
+        int innerLength = 8 + 8 + 8 + 4 + 4 + messageBodyLength;
         int zeroCount = 0;
-        if (innerOs.limit() % 16 != 0) {
-            zeroCount = 16 - innerOs.limit() % 16;
+        if (innerLength % 16 != 0) {
+            zeroCount = 16 - innerLength % 16;
         }
+        return 8 + 16 + innerLength + zeroCount;
+    }
 
-        ByteBufferDesc dataForEncryption = BuffersStorage.getInstance().getFreeBuffer(innerOs.limit() + zeroCount);
-        dataForEncryption.writeRaw(innerOs);
-        BuffersStorage.getInstance().reuseFreeBuffer(innerOs);
+    /**
+     * Writes the auth key id, message key and plain message into a buffer of
+     * {@link #getEncryptedMessageLength} bytes, leaves the position at the start of the padding
+     * and derives the AES key and iv into keyData. Padding and AES are left to the caller.
+     * Returns false if the body didn't serialize to messageBodyLength bytes.
+     */
+    static boolean writeMessageData(ByteBufferDesc data, byte[] authKey, long authKeyId, long serverSalt, long sessionId, long messageId, int messageSeqNo, TLObject messageBody, int messageBodyLength, ArrayList<Integer> quickAckId, MessageKeyData keyData) {
+        int innerLength = 8 + 8 + 8 + 4 + 4 + messageBodyLength;
+        data.writeInt64(authKeyId);
+        data.position(8 + 16);
+        data.writeInt64(serverSalt);
+        data.writeInt64(sessionId);
+        data.writeInt64(messageId);
+        data.writeInt32(messageSeqNo);
+        data.writeInt32(messageBodyLength);
+        messageBody.serializeToStream(data);
 
-        if (zeroCount != 0) {
-            byte[] b = new byte[zeroCount];
-            Utilities.random.nextBytes(b);
-            dataForEncryption.writeRaw(b);
+        if (data.position() != 8 + 16 + innerLength) {
+            return false;
         }
 
-        Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, false, 0, dataForEncryption.limit());
+        byte[] messageKeyFull = MessageKeyData.computeSHA1(data.buffer, 8 + 16, innerLength);
+        if (messageKeyFull == null) {
+            return false;
+        }
 
-        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(8 + messageKey.length + dataForEncryption.limit());
-        data.writeInt64(datacenter.authKeyId);
-        data.writeRaw(messageKey);
-        data.writeRaw(dataForEncryption);
-        BuffersStorage.getInstance().reuseFreeBuffer(dataForEncryption);
+        if (quickAckId != null) {
+            int ack = (messageKeyFull[0] & 0xff) | ((messageKeyFull[1] & 0xff) << 8) | ((messageKeyFull[2] & 0xff) << 16) | ((messageKeyFull[3] & 0xff) << 24);
+            quickAckId.add(ack & 0x7fffffff);
+        }
 
-        return data;
+        data.position(8);
+        data.writeRaw(messageKeyFull, messageKeyFull.length - 16, 16);
+        data.position(8 + 16 + innerLength);
+
+        return MessageKeyData.generateMessageKeyData(authKey, messageKeyFull, messageKeyFull.length - 16, false, keyData);
     }
 
     void refillSaltSet(final Datacenter datacenter) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (RPCRequest request : requestQueue) {
+                for (RPCRequest request : requestQueue.queue(RPCRequestQueue.QUEUE_GENERIC)) {
                     if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                         Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
                         if (requestDatacenter.datacenterId == datacenter.datacenterId) {
@@ -1693,7 +1996,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 }
 
-                for (RPCRequest request : runningRequests) {
+                for (RPCRequest request : requestQueue.running()) {
                     if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                         Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
                         if (requestDatacenter.datacenterId == datacenter.datacenterId) {
@@ -1724,10 +2027,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (RPCRequest request : runningRequests) {
-                    if (requestMsgId == request.runningMessageId) {
-                        request.confirmed = true;
-                    }
+                RPCRequest request = requestQueue.runningWithMessageId(requestMsgId);
+                if (request != null) {
+                    request.confirmed = true;
                 }
             }
         });
@@ -1737,15 +2039,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (int i = 0; i < runningRequests.size(); i++) {
-                    RPCRequest request = runningRequests.get(i);
+                RPCRequest request = requestQueue.runningRespondingTo(requestMsgId);
+                if (request != null) {
                     removeRequestInClass(request.token);
-                    if (request.respondsToMessageId(requestMsgId)) {
-                        request.rawRequest.freeResources();
-                        request.rpcRequest.freeResources();
-                        runningRequests.remove(i);
-                        i--;
-                    }
+                    request.rawRequest.freeResources();
+                    request.rpcRequest.freeResources();
+                    requestQueue.removeRunning(request.token);
                 }
             }
         });
@@ -1836,14 +2135,14 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 serverSaltDesc.value = serverSalt;
                 datacenter.addServerSalt(serverSaltDesc);
 
-                for (RPCRequest request : runningRequests) {
+                for (RPCRequest request : requestQueue.running()) {
                     Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
-                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                        request.runningMessageId = 0;
+                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId && ((connection.transportRequestClass & (RPCRequest.RPCRequestClassDownloadMedia | RPCRequest.RPCRequestClassUploadMedia)) == 0 || request.connectionNum == connection.connectionNum)) {
+                        requestQueue.setRunningMessageId(request, 0);
                         request.runningMessageSeqNo = 0;
                         request.runningStartTime = 0;
                         request.runningMinStartTime = 0;
-                        request.transportChannelToken = 0;
+                        requestQueue.setTransportChannelToken(request, 0);
                     }
                 }
 
@@ -1894,6 +2193,11 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         if (Math.abs(pingTime) < 10) {
                             currentPingTime = (pingTime + currentPingTime) / 2;
 
+                            int roundTripTime = (int)(System.currentTimeMillis() + (long)timeDifference * 1000 - getTimeFromMsgId(pong.msg_id));
+                            if (roundTripTime > 0 && roundTripTime < 10000) {
+                                currentRoundTripTime = currentRoundTripTime == 0 ? roundTripTime : (currentRoundTripTime * 3 + roundTripTime) / 4;
+                            }
+
                             if (messageId != 0) {
                                 long timeMessage = getTimeFromMsgId(messageId);
                                 long currentTime = System.currentTimeMillis();
@@ -1915,20 +2219,17 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         } else if (message instanceof TLRPC.TL_futuresalts) {
             TLRPC.TL_futuresalts futureSalts = (TLRPC.TL_futuresalts)message;
             long requestMid = futureSalts.req_msg_id;
-            for (RPCRequest request : runningRequests) {
-                if (request.respondsToMessageId(requestMid)) {
-                    if (request.completionBlock != null) {
-                        request.completionBlock.run(futureSalts, null);
-                    }
-
-                    futureSalts.freeResources();
+            RPCRequest request = requestQueue.runningRespondingTo(requestMid);
+            if (request != null) {
+                if (request.completionBlock != null) {
+                    request.completionBlock.run(futureSalts, null);
+                }
 
-                    messagesConfirmed(requestMid);
-                    request.completed = true;
-                    rpcCompleted(requestMid);
+                futureSalts.freeResources();
 
-                    break;
-                }
+                messagesConfirmed(requestMid);
+                request.completed = true;
+                rpcCompleted(requestMid);
             }
         } else if (message instanceof TLRPC.DestroySessionRes) {
             TLRPC.DestroySessionRes res = (TLRPC.DestroySessionRes)message;
@@ -1997,157 +2298,155 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if (!ignoreResult) {
                 boolean found = false;
 
-                for (RPCRequest request : runningRequests) {
-                    if (request.respondsToMessageId(resultMid)) {
-                        found = true;
+                RPCRequest request = requestQueue.runningRespondingTo(resultMid);
+                if (request != null) {
+                    found = true;
 
-                        boolean discardResponse = false;
-                        boolean isError = false;
-                        if (request.completionBlock != null) {
-                            TLRPC.TL_error implicitError = null;
-                            if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
-                                TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed)resultContainer.result;
-                                TLObject uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
-                                if (uncomressed == null) {
-                                    System.gc();
-                                    uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
-                                }
-                                if (uncomressed == null) {
-                                    throw new RuntimeException("failed to decomress responce for " + request.rawRequest);
-                                }
-                                resultContainer.result = uncomressed;
+                    boolean discardResponse = false;
+                    boolean isError = false;
+                    if (request.completionBlock != null) {
+                        TLRPC.TL_error implicitError = null;
+                        if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
+                            TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed)resultContainer.result;
+                            TLObject uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
+                            if (uncomressed == null) {
+                                System.gc();
+                                uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
+                            }
+                            if (uncomressed == null) {
+                                throw new RuntimeException("failed to decomress responce for " + request.rawRequest);
                             }
-                            if (resultContainer.result instanceof TLRPC.RpcError) {
-                                String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
-                                FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
+                            resultContainer.result = uncomressed;
+                        }
+                        if (resultContainer.result instanceof TLRPC.RpcError) {
+                            String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
+                            FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
 
-                                int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
+                            int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
 
-                                if (errorCode == 500 || errorCode < 0) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) != 0) {
-                                        if (request.serverFailureCount < 1) {
-                                            discardResponse = true;
-                                            request.runningMinStartTime = request.runningStartTime + 1;
-                                        }
-                                    } else {
+                            if (errorCode == 500 || errorCode < 0) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) != 0) {
+                                    if (request.serverFailureCount < 1) {
                                         discardResponse = true;
-                                        int delay = Math.min(1, request.serverFailureCount * 2);
-                                        request.runningMinStartTime = request.runningStartTime + delay;
-                                        request.confirmed = false;
+                                        request.runningMinStartTime = request.runningStartTime + 1;
                                     }
-                                    request.serverFailureCount++;
-                                } else if (errorCode == 420) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
-                                        double waitTime = 2.0;
-
-                                        if (errorMessage.contains("FLOOD_WAIT_")) {
-                                            String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
-
-                                            Pattern pattern = Pattern.compile("[0-9]+");
-                                            Matcher matcher = pattern.matcher(errorMsg);
-                                            if (matcher.find()) {
-                                                errorMsg = matcher.group(0);
-                                            }
+                                } else {
+                                    discardResponse = true;
+                                    int delay = Math.min(1, request.serverFailureCount * 2);
+                                    request.runningMinStartTime = request.runningStartTime + delay;
+                                    request.confirmed = false;
+                                }
+                                request.serverFailureCount++;
+                            } else if (errorCode == 420) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
+                                    double waitTime = 2.0;
+
+                                    if (errorMessage.contains("FLOOD_WAIT_")) {
+                                        String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
+
+                                        Pattern pattern = Pattern.compile("[0-9]+");
+                                        Matcher matcher = pattern.matcher(errorMsg);
+                                        if (matcher.find()) {
+                                            errorMsg = matcher.group(0);
+                                        }
 
-                                            Integer val;
-                                            try {
-                                                val = Integer.parseInt(errorMsg);
-                                            } catch (Exception e) {
-                                                val = null;
-                                            }
-                                            if (val != null) {
-                                                waitTime = val;
-                                            }
+                                        Integer val;
+                                        try {
+                                            val = Integer.parseInt(errorMsg);
+                                        } catch (Exception e) {
+                                            val = null;
                                         }
+                                        if (val != null) {
+                                            waitTime = val;
+                                        }
+                                    }
 
-                                        waitTime = Math.min(30, waitTime);
+                                    waitTime = Math.min(30, waitTime);
 
-                                        discardResponse = true;
-                                        request.runningMinStartTime = (int)(System.currentTimeMillis() / 1000 + waitTime);
-                                        request.confirmed = false;
-                                    }
+                                    discardResponse = true;
+                                    request.runningMinStartTime = (int)(System.currentTimeMillis() / 1000 + waitTime);
+                                    request.confirmed = false;
                                 }
+                            }
 
+                            implicitError = new TLRPC.TL_error();
+                            implicitError.code = ((TLRPC.RpcError)resultContainer.result).error_code;
+                            implicitError.text = ((TLRPC.RpcError)resultContainer.result).error_message;
+                        } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
+                            if (request.rawRequest == null || !request.rawRequest.responseClass().isAssignableFrom(resultContainer.result.getClass())) {
+                                if (request.rawRequest == null) {
+                                    FileLog.e("tmessages", "rawRequest is null");
+                                } else {
+                                    FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (" + request.rawRequest.responseClass() + " expected)");
+                                }
                                 implicitError = new TLRPC.TL_error();
-                                implicitError.code = ((TLRPC.RpcError)resultContainer.result).error_code;
-                                implicitError.text = ((TLRPC.RpcError)resultContainer.result).error_message;
-                            } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
-                                if (request.rawRequest == null || !request.rawRequest.responseClass().isAssignableFrom(resultContainer.result.getClass())) {
-                                    if (request.rawRequest == null) {
-                                        FileLog.e("tmessages", "rawRequest is null");
-                                    } else {
-                                        FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (" + request.rawRequest.responseClass() + " expected)");
-                                    }
-                                    implicitError = new TLRPC.TL_error();
-                                    implicitError.code = -1000;
-                                    implicitError.text = "";
+                                implicitError.code = -1000;
+                                implicitError.text = "";
+                            }
+                        }
+
+                        if (!discardResponse) {
+                            if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
+                                isError = true;
+                                request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
+                            } else {
+                                if (resultContainer.result instanceof TLRPC.updates_Difference) {
+                                    pushMessagesReceived = true;
+                                    Utilities.RunOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (wakeLock.isHeld()) {
+                                                wakeLock.release();
+                                            }
+                                        }
+                                    });
                                 }
+                                request.completionBlock.run(resultContainer.result, null);
                             }
+                        }
 
-                            if (!discardResponse) {
-                                if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
-                                    isError = true;
-                                    request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
-                                } else {
-                                    if (resultContainer.result instanceof TLRPC.updates_Difference) {
-                                        pushMessagesReceived = true;
+                        if (implicitError != null && implicitError.code == 401) {
+                            isError = true;
+                            if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
+                                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                                    if (UserConfig.isClientActivated()) {
+                                        UserConfig.clearConfig();
                                         Utilities.RunOnUIThread(new Runnable() {
                                             @Override
                                             public void run() {
-                                                if (wakeLock.isHeld()) {
-                                                    wakeLock.release();
-                                                }
+                                                NotificationCenter.getInstance().postNotificationName(1234);
                                             }
                                         });
                                     }
-                                    request.completionBlock.run(resultContainer.result, null);
                                 }
-                            }
-
-                            if (implicitError != null && implicitError.code == 401) {
-                                isError = true;
-                                if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                                        if (UserConfig.isClientActivated()) {
-                                            UserConfig.clearConfig();
-                                            Utilities.RunOnUIThread(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    NotificationCenter.getInstance().postNotificationName(1234);
-                                                }
-                                            });
-                                        }
-                                    }
-                                } else {
-                                    datacenter.authorized = false;
-                                    saveSession();
-                                    discardResponse = true;
-                                    if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                                        retryRequestsFromDatacenter = datacenter.datacenterId;
-                                        retryRequestsClass = request.flags;
-                                    }
+                            } else {
+                                datacenter.authorized = false;
+                                saveSession();
+                                discardResponse = true;
+                                if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                                    retryRequestsFromDatacenter = datacenter.datacenterId;
+                                    retryRequestsClass = request.flags;
                                 }
                             }
                         }
+                    }
 
-                        if (!discardResponse) {
-                            if (request.initRequest && !isError) {
-                                if (datacenter.lastInitVersion != currentAppVersion) {
-                                    datacenter.lastInitVersion = currentAppVersion;
-                                    saveSession();
-                                    FileLog.e("tmessages", "init connection completed");
-                                } else {
-                                    FileLog.e("tmessages", "rpc is init, but init connection already completed");
-                                }
+                    if (!discardResponse) {
+                        if (request.initRequest && !isError) {
+                            if (datacenter.lastInitVersion != currentAppVersion) {
+                                datacenter.lastInitVersion = currentAppVersion;
+                                saveSession();
+                                FileLog.e("tmessages", "init connection completed");
+                            } else {
+                                FileLog.e("tmessages", "rpc is init, but init connection already completed");
                             }
-                            request.completed = true;
-                            rpcCompleted(resultMid);
-                        } else {
-                            request.runningMessageId = 0;
-                            request.runningMessageSeqNo = 0;
-                            request.transportChannelToken = 0;
                         }
-                        break;
+                        request.completed = true;
+                        rpcCompleted(resultMid);
+                    } else {
+                        requestQueue.setRunningMessageId(request, 0);
+                        request.runningMessageSeqNo = 0;
+                        requestQueue.setTransportChannelToken(request, 0);
                     }
                 }
 
@@ -2226,18 +2525,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             boolean confirm = true;
 
             if (detailedInfo instanceof TLRPC.TL_msg_detailed_info) {
-                for (RPCRequest request : runningRequests) {
-                    if (request.respondsToMessageId(detailedInfo.msg_id)) {
-                        if (request.completed) {
-                            break;
-                        }
-                        if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int)(System.currentTimeMillis() / 1000)) {
-                            request.lastResendTime = (int)(System.currentTimeMillis() / 1000);
-                            requestResend = true;
-                        } else {
-                            confirm = false;
-                        }
-                        break;
+                RPCRequest request = requestQueue.runningRespondingTo(detailedInfo.msg_id);
+                if (request != null && !request.completed) {
+                    if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int)(System.currentTimeMillis() / 1000)) {
+                        request.lastResendTime = (int)(System.currentTimeMillis() / 1000);
+                        requestResend = true;
+                    } else {
+                        confirm = false;
                     }
                 }
             } else {
@@ -2406,6 +2700,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 if (paused && lastPauseTime != 0) {
                     lastPauseTime = System.currentTimeMillis();
                     nextSleepTimeout = 30000;
+                    scheduleStage(System.currentTimeMillis());
                 }
                 processRequestQueue(connection.transportRequestClass, connection.getDatacenterId());
             }
@@ -2416,11 +2711,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     public void tcpConnectionQuiackAckReceived(TcpConnection connection, int ack) {
         ArrayList<Long> arr = quickAckIdToRequestIds.get(ack);
         if (arr != null) {
-            for (RPCRequest request : runningRequests) {
-                if (arr.contains(request.token)) {
-                    if (request.quickAckBlock != null) {
-                        request.quickAckBlock.quickAck();
-                    }
+            for (Long token : arr) {
+                RPCRequest request = requestQueue.getRunning(token);
+                if (request != null && request.quickAckBlock != null) {
+                    request.quickAckBlock.quickAck();
                 }
             }
             quickAckIdToRequestIds.remove(ack);
@@ -2491,8 +2785,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 return;
             }
 
-            byte[] messageKey = data.readData(16);
-            MessageKeyData keyData = Utilities.generateMessageKeyData(datacenter.authKey, messageKey, true);
+            byte[] messageKey = messageKeyLocal.get();
+            data.readRaw(messageKey);
+            MessageKeyData keyData = keyDataLocal.get();
+            MessageKeyData.generateMessageKeyData(datacenter.authKey, messageKey, 0, true, keyData);
 
             Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, false, false, data.position(), length - 24);
 
@@ -2559,10 +2855,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     public TLObject getRequestWithMessageId(long msgId) {
-        for (RPCRequest request : runningRequests) {
-            if (msgId == request.runningMessageId) {
-                return request.rawRequest;
-            }
+        RPCRequest request = requestQueue.runningWithMessageId(msgId);
+        if (request != null) {
+            return request.rawRequest;
         }
         return null;
     }
@@ -0,0 +1,133 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Per connection state for packing outgoing messages into containers: messages lingering for a
+ * short window so that acks, pings and requests posted close together share one container, the
+ * measured send throughput that the container size adapts to, and container statistics.
+ */
+public class ContainerPacker {
+    //used while there is no throughput or rtt measurement, what the old fixed limit was
+    public static final int MIN_CONTAINER_BYTES = 3 * 1024;
+    //the server accepts messages up to 1 MB, larger containers than the biggest pooled buffer would allocate on every send
+    public static final int MAX_CONTAINER_BYTES = Math.min(1024 * 1024, BuffersStorage.SIZE_CLASSES[BuffersStorage.SIZE_CLASSES.length - 1]) - 1024;
+    public static final int MAX_CONTAINER_MESSAGES = 1020;
+    private static final int MIN_THROUGHPUT_SAMPLE_TIME = 20;
+
+    /**
+     * How long in ms messages may wait for others before being packed, 0 packs every call on its own.
+     * Interactive requests and full containers never wait.
+     */
+    public static volatile int lingerTime = 2;
+
+    //stage queue only
+    final ArrayList<NetworkMessage> lingeringMessages = new ArrayList<NetworkMessage>();
+    int lingeringBytes;
+    boolean lingeringReportAck;
+    long lingeringSessionId;
+    boolean flushScheduled;
+
+    private int containersCount;
+    private int messagesCount;
+    private long bytesCount;
+    private int maxContainerBytes;
+    private int lastContainerMessages;
+    private int lastContainerBytes;
+    private int lastContainerLimit;
+
+    //network thread only
+    private long burstStartTime;
+    private int burstBytes;
+    private int unsentBytes;
+    private volatile int bytesPerSecond;
+
+    /**
+     * Called when data is handed to the socket.
+     */
+    void onWrite(int bytes) {
+        if (unsentBytes == 0) {
+            burstStartTime = System.currentTimeMillis();
+            burstBytes = 0;
+        }
+        unsentBytes += bytes;
+        burstBytes += bytes;
+    }
+
+    /**
+     * Called when the socket took data, a burst that took long enough to drain gives a throughput sample.
+     */
+    void onSent(int bytes) {
+        if (bytes <= 0 || unsentBytes == 0) {
+            return;
+        }
+        unsentBytes = Math.max(0, unsentBytes - bytes);
+        if (unsentBytes == 0) {
+            long time = System.currentTimeMillis() - burstStartTime;
+            if (time >= MIN_THROUGHPUT_SAMPLE_TIME) {
+                int sample = (int)Math.min(Integer.MAX_VALUE, burstBytes * 1000L / time);
+                int current = bytesPerSecond;
+                bytesPerSecond = current == 0 ? sample : (current * 3 + sample) / 4;
+            }
+        }
+    }
+
+    void reset() {
+        unsentBytes = 0;
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Container size limit for the given round trip time: what the connection sends in a quarter
+     * of it, so that the first message of a container is not held back for long.
+     */
+    int getContainerLimit(int rtt) {
+        int throughput = bytesPerSecond;
+        if (throughput == 0 || rtt <= 0) {
+            return MIN_CONTAINER_BYTES;
+        }
+        long limit = (long)throughput * rtt / 1000 / 4;
+        return (int)Math.max(MIN_CONTAINER_BYTES, Math.min(MAX_CONTAINER_BYTES, limit));
+    }
+
+    void addContainer(int messages, int bytes, int limit) {
+        containersCount++;
+        messagesCount += messages;
+        bytesCount += bytes;
+        maxContainerBytes = Math.max(maxContainerBytes, bytes);
+        lastContainerMessages = messages;
+        lastContainerBytes = bytes;
+        lastContainerLimit = limit;
+    }
+
+    public int getContainersCount() {
+        return containersCount;
+    }
+
+    public int getMessagesCount() {
+        return messagesCount;
+    }
+
+    public long getBytesCount() {
+        return bytesCount;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "containers %d, messages %d (%.1f per container), bytes %d (%d avg, %d max), last %d messages %d/%d bytes, %d B/s",
+                containersCount, messagesCount, containersCount == 0 ? 0.0f : (float)messagesCount / containersCount,
+                bytesCount, containersCount == 0 ? 0 : bytesCount / containersCount, maxContainerBytes,
+                lastContainerMessages, lastContainerBytes, lastContainerLimit, bytesPerSecond);
+    }
+}
@@ -34,9 +34,12 @@ public class Datacenter {
     private volatile int currentPortNum = 0;
     private volatile int currentAddressNum = 0;
 
+    public static final int MAX_DOWNLOAD_CONNECTIONS = 4;
+    public static final int MAX_UPLOAD_CONNECTIONS = 4;
+
     public TcpConnection connection;
-    private TcpConnection downloadConnection;
-    private TcpConnection uploadConnection;
+    private TcpConnection[] downloadConnections = new TcpConnection[MAX_DOWNLOAD_CONNECTIONS];
+    private TcpConnection[] uploadConnections = new TcpConnection[MAX_UPLOAD_CONNECTIONS];
     public TcpConnection pushConnection;
 
     private ArrayList<ServerSalt> authServerSaltSet = new ArrayList<ServerSalt>();
@@ -197,7 +200,7 @@ public class Datacenter {
         ports = newPorts;
     }
 
-    public void SerializeToStream(SerializedData stream) {
+    public void SerializeToStream(AbsSerializedData stream) {
         stream.writeInt32(DATA_VERSION);
         stream.writeInt32(datacenterId);
         stream.writeInt32(lastInitVersion);
@@ -311,6 +314,23 @@ public class Datacenter {
         Collections.sort(authServerSaltSet, new SaltComparator());
     }
 
+    /**
+     * Server time at which the known salts run out minus margin, Integer.MAX_VALUE if there are none.
+     */
+    int getSaltRefillTime(int margin) {
+        int validUntil = 0;
+        for (ServerSalt salt : authServerSaltSet) {
+            if (salt.validSince == 0 && salt.validUntil == Integer.MAX_VALUE) {
+                continue;
+            }
+            validUntil = Math.max(validUntil, salt.validUntil);
+        }
+        if (validUntil == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return validUntil - margin;
+    }
+
     boolean containsServerSalt(long value) {
         for (ServerSalt salt : authServerSaltSet) {
             if (salt.value == value) {
@@ -324,11 +344,15 @@ public class Datacenter {
         if (connection != null) {
             connection.suspendConnection(true);
         }
-        if (uploadConnection != null) {
-            uploadConnection.suspendConnection(true);
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                uploadConnection.suspendConnection(true);
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.suspendConnection(true);
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                downloadConnection.suspendConnection(true);
+            }
         }
     }
 
@@ -336,11 +360,15 @@ public class Datacenter {
         if (connection != null) {
             sessions.add(connection.getSissionId());
         }
-        if (uploadConnection != null) {
-            sessions.add(uploadConnection.getSissionId());
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                sessions.add(uploadConnection.getSissionId());
+            }
         }
-        if (downloadConnection != null) {
-            sessions.add(downloadConnection.getSissionId());
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                sessions.add(downloadConnection.getSissionId());
+            }
         }
     }
 
@@ -348,32 +376,45 @@ public class Datacenter {
         if (connection != null) {
             connection.recreateSession();
         }
-        if (uploadConnection != null) {
-            uploadConnection.recreateSession();
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                uploadConnection.recreateSession();
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.recreateSession();
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                downloadConnection.recreateSession();
+            }
         }
     }
 
-    public TcpConnection getDownloadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+    /**
+     * Download and upload connections are created on first use, each with its own session.
+     */
+    public TcpConnection getDownloadConnection(int num, TcpConnection.TcpConnectionDelegate delegate) {
+        TcpConnection downloadConnection = downloadConnections[num];
         if (authKey != null) {
             if (downloadConnection == null) {
                 downloadConnection = new TcpConnection(datacenterId);
                 downloadConnection.delegate = delegate;
                 downloadConnection.transportRequestClass = RPCRequest.RPCRequestClassDownloadMedia;
+                downloadConnection.connectionNum = num;
+                downloadConnections[num] = downloadConnection;
             }
             downloadConnection.connect();
         }
         return downloadConnection;
     }
 
-    public TcpConnection getUploadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+    public TcpConnection getUploadConnection(int num, TcpConnection.TcpConnectionDelegate delegate) {
+        TcpConnection uploadConnection = uploadConnections[num];
         if (authKey != null) {
             if (uploadConnection == null) {
                 uploadConnection = new TcpConnection(datacenterId);
                 uploadConnection.delegate = delegate;
                 uploadConnection.transportRequestClass = RPCRequest.RPCRequestClassUploadMedia;
+                uploadConnection.connectionNum = num;
+                uploadConnections[num] = uploadConnection;
             }
             uploadConnection.connect();
         }
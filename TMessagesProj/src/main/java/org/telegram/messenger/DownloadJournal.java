@@ -0,0 +1,193 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Byte ranges of a temp file that hold downloaded data, so parts can be written wherever they
+ * belong as soon as they arrive and a resumed download only asks for what is missing. Ranges
+ * are appended to the journal file as 8 byte offset and length records by {@link #flush}, which
+ * the caller runs only after the data itself was synced. A record cut short by a crash is
+ * dropped on load. Ranges can be queried from any thread, everything else belongs to the thread
+ * that downloads.
+ */
+public class DownloadJournal {
+    private static final int RECORD_SIZE = 8;
+
+    private final File file;
+    private RandomAccessFile journal;
+    //range start to range end, ranges never touch or overlap
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+    private final ArrayList<int[]> pendingRecords = new ArrayList<int[]>();
+    private int completedBytes;
+
+    public DownloadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the ranges recorded so far, ranges past fileLength are dropped.
+     */
+    public void load(long fileLength) throws Exception {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile stream = new RandomAccessFile(file, "r");
+        try {
+            int count = (int)(stream.length() / RECORD_SIZE);
+            byte[] data = new byte[count * RECORD_SIZE];
+            stream.readFully(data);
+            for (int a = 0; a < count; a++) {
+                int offset = readInt(data, a * RECORD_SIZE);
+                int length = readInt(data, a * RECORD_SIZE + 4);
+                if (offset >= 0 && length > 0 && (long)offset + length <= fileLength) {
+                    addRange(offset, length);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Marks a range as downloaded, it is written to the journal on the next flush.
+     *
+     * @return how many of its bytes were not downloaded before
+     */
+    public synchronized int add(int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        int added = addRange(offset, length);
+        if (added != 0) {
+            pendingRecords.add(new int[] {offset, length});
+        }
+        return added;
+    }
+
+    private synchronized int addRange(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        int covered = 0;
+        Map.Entry<Integer, Integer> entry = ranges.floorEntry(start);
+        if (entry != null && entry.getValue() >= start) {
+            start = entry.getKey();
+            covered += entry.getValue() - entry.getKey();
+            end = Math.max(end, entry.getValue());
+            ranges.remove(entry.getKey());
+        }
+        while ((entry = ranges.ceilingEntry(start)) != null && entry.getKey() <= end) {
+            covered += entry.getValue() - entry.getKey();
+            end = Math.max(end, entry.getValue());
+            ranges.remove(entry.getKey());
+        }
+        ranges.put(start, end);
+        int added = end - start - covered;
+        completedBytes += added;
+        return added;
+    }
+
+    public synchronized int getCompletedBytes() {
+        return completedBytes;
+    }
+
+    /**
+     * First offset at or after the given one that is not downloaded.
+     */
+    public synchronized int getNextMissingOffset(int offset) {
+        Map.Entry<Integer, Integer> entry = ranges.floorEntry(offset);
+        if (entry != null && entry.getValue() > offset) {
+            return entry.getValue();
+        }
+        return offset;
+    }
+
+    /**
+     * How many bytes from a missing offset on are missing, Integer.MAX_VALUE up to the end.
+     */
+    public synchronized int getMissingLength(int offset) {
+        Integer next = ranges.higherKey(offset);
+        return next == null ? Integer.MAX_VALUE : next - offset;
+    }
+
+    public synchronized boolean isRangeCompleted(int offset, int length) {
+        Map.Entry<Integer, Integer> entry = ranges.floorEntry(offset);
+        return entry != null && entry.getValue() >= offset + length;
+    }
+
+    /**
+     * Makes sure the journal file exists on disk. Run it before the first part is written, so
+     * that a temp file without a journal is always one that was written in order.
+     */
+    public void create() throws Exception {
+        open();
+        journal.getChannel().force(true);
+    }
+
+    private void open() throws Exception {
+        if (journal == null) {
+            journal = new RandomAccessFile(file, "rw");
+            long length = journal.length();
+            journal.setLength(length - length % RECORD_SIZE);
+        }
+    }
+
+    public void flush() throws Exception {
+        if (pendingRecords.isEmpty()) {
+            return;
+        }
+        open();
+        byte[] data = new byte[pendingRecords.size() * RECORD_SIZE];
+        for (int a = 0; a < pendingRecords.size(); a++) {
+            int[] record = pendingRecords.get(a);
+            writeInt(data, a * RECORD_SIZE, record[0]);
+            writeInt(data, a * RECORD_SIZE + 4, record[1]);
+        }
+        journal.seek(journal.length());
+        journal.write(data);
+        journal.getChannel().force(false);
+        pendingRecords.clear();
+    }
+
+    public void close() {
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >> 24);
+        data[offset + 1] = (byte)(value >> 16);
+        data[offset + 2] = (byte)(value >> 8);
+        data[offset + 3] = (byte)value;
+    }
+}
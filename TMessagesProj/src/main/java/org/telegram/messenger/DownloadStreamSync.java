@@ -0,0 +1,83 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.util.HashMap;
+
+/**
+ * Where the stream readers of a download wait for the parts they need, see FileStreamReader.
+ * Keeps the position each open reader last waited at, parts right after one of them are
+ * wanted soon.
+ */
+public class DownloadStreamSync {
+    //bytes after the position a reader waits at that are wanted soon
+    public final static int readAheadLength = 1024 * 1024;
+
+    public static interface StreamSyncDelegate {
+        public abstract boolean isRangeDownloaded(int offset, int length);
+        public abstract void didReaderWait(int offset);
+    }
+
+    private final StreamSyncDelegate delegate;
+    private final HashMap<FileStreamReader, Integer> readOffsets = new HashMap<FileStreamReader, Integer>();
+    private volatile boolean stopped;
+
+    public DownloadStreamSync(StreamSyncDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Blocks until the range is downloaded, the delegate is told once that the reader waits
+     * at the offset.
+     *
+     * @return false if the download stopped without the range
+     */
+    public boolean waitForRange(FileStreamReader reader, int offset, int length) throws InterruptedException {
+        boolean waited = false;
+        synchronized (this) {
+            while (!delegate.isRangeDownloaded(offset, length)) {
+                if (stopped) {
+                    return false;
+                }
+                if (!waited) {
+                    waited = true;
+                    readOffsets.put(reader, offset);
+                    delegate.didReaderWait(offset);
+                }
+                wait(1000);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether an open reader waited right before or inside the range.
+     */
+    public synchronized boolean isReadAhead(int offset, int length) {
+        for (Integer readOffset : readOffsets.values()) {
+            if (offset + length > readOffset && offset < readOffset + readAheadLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void removeReader(FileStreamReader reader) {
+        readOffsets.remove(reader);
+    }
+
+    public synchronized void notifyReaders() {
+        notifyAll();
+    }
+
+    public void stop() {
+        stopped = true;
+        notifyReaders();
+    }
+}
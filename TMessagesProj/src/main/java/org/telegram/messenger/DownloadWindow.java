@@ -0,0 +1,94 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.util.HashMap;
+
+/**
+ * How many bytes of file parts to keep requested from one datacenter. The window is twice the
+ * bandwidth delay product measured from finished parts: while the window is what limits a
+ * download the measured throughput grows with it and the window keeps doubling, once the link
+ * is the limit it settles. Shared by all downloads, stage queue only.
+ */
+public class DownloadWindow {
+    public static final int MIN_WINDOW = 3 * 32 * 1024;
+    public static final int MAX_WINDOW = 4 * 1024 * 1024;
+    private static final int MIN_SAMPLE_TIME = 250;
+    private static final int MIN_RTT_LIFETIME = 10000;
+
+    private static final HashMap<Integer, DownloadWindow> windows = new HashMap<Integer, DownloadWindow>();
+
+    private int activeRequests;
+    private long sampleStartTime;
+    private int sampleBytes;
+    private int bytesPerSecond;
+    private int minRtt;
+    private long minRttTime;
+
+    public static DownloadWindow getInstance(int datacenterId) {
+        DownloadWindow window = windows.get(datacenterId);
+        if (window == null) {
+            window = new DownloadWindow();
+            windows.put(datacenterId, window);
+        }
+        return window;
+    }
+
+    public void onRequestSent() {
+        if (activeRequests == 0) {
+            sampleStartTime = System.currentTimeMillis();
+            sampleBytes = 0;
+        }
+        activeRequests++;
+    }
+
+    /**
+     * @param bytes size of the received part, 0 for failed or cancelled requests
+     * @param sendTime when the request was sent
+     */
+    public void onRequestFinished(int bytes, long sendTime) {
+        if (activeRequests == 0) {
+            return;
+        }
+        activeRequests--;
+        if (bytes <= 0) {
+            return;
+        }
+        long currentTime = System.currentTimeMillis();
+        int rtt = (int)(currentTime - sendTime);
+        if (rtt > 0 && (minRtt == 0 || rtt <= minRtt || currentTime - minRttTime > MIN_RTT_LIFETIME)) {
+            minRtt = rtt;
+            minRttTime = currentTime;
+        }
+        sampleBytes += bytes;
+        long time = currentTime - sampleStartTime;
+        if (time >= MIN_SAMPLE_TIME) {
+            int sample = (int)Math.min(Integer.MAX_VALUE, sampleBytes * 1000L / time);
+            bytesPerSecond = bytesPerSecond == 0 ? sample : (bytesPerSecond + sample) / 2;
+            sampleStartTime = currentTime;
+            sampleBytes = 0;
+        }
+    }
+
+    public int getWindow() {
+        if (bytesPerSecond == 0 || minRtt == 0) {
+            return MIN_WINDOW;
+        }
+        long window = 2L * bytesPerSecond * minRtt / 1000;
+        return (int)Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getMinRtt() {
+        return minRtt;
+    }
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -30,17 +31,24 @@ public class FileLoadOperation {
     private static class RequestInfo {
         private long requestToken = 0;
         private int offset = 0;
+        private int limit = 0;
+        private long sendTime = 0;
+        private DownloadWindow window = null;
         private TLRPC.TL_upload_file response = null;
     }
 
     private final static int downloadChunkSize = 1024 * 32;
-    private final static int maxDownloadRequests = 3;
+    //parts are powers of two up to the largest that still fits a pooled buffer, the protocol allows up to 1 MB
+    private final static int maxDownloadChunkSize = 1024 * 256;
+    private final static int maxDownloadRequests = 16;
+    //downloaded bytes between two syncs of the temp file and the iv
+    private final static int checkpointInterval = 1024 * 1024;
 
     public int datacenter_id;
     public TLRPC.InputFileLocation location;
     public volatile int state = 0;
-    private int downloadedBytes;
-    public int totalBytesCount;
+    private volatile int downloadedBytes;
+    public volatile int totalBytesCount;
     public FileLoadOperationDelegate delegate;
     public Bitmap image;
     public String filter;
@@ -48,8 +56,8 @@ public class FileLoadOperation {
     private byte[] iv;
 
     private int nextDownloadOffset = 0;
-    private ArrayList<RequestInfo> requestInfos = new ArrayList<RequestInfo>(maxDownloadRequests);
-    private ArrayList<RequestInfo> delayedRequestInfos = new ArrayList<RequestInfo>(maxDownloadRequests - 1);
+    private ArrayList<RequestInfo> requestInfos = new ArrayList<RequestInfo>();
+    private ArrayList<RequestInfo> delayedRequestInfos = new ArrayList<RequestInfo>();
 
     private File cacheFileTemp;
     private File cacheFileFinal;
@@ -61,7 +69,24 @@ public class FileLoadOperation {
     public boolean needBitmapCreate = true;
     private InputStream httpConnectionStream;
     private RandomAccessFile fileOutputStream;
+    private FileChannel fileChannel;
     private RandomAccessFile fiv;
+    private int checkpointOffset;
+    //unencrypted downloads of known size write parts as they come and keep the downloaded ranges here
+    private DownloadJournal journal;
+
+    //stream readers wait here for the parts they need, parts they read next get interactive priority
+    final DownloadStreamSync streamSync = new DownloadStreamSync(new DownloadStreamSync.StreamSyncDelegate() {
+        @Override
+        public boolean isRangeDownloaded(int offset, int length) {
+            return FileLoadOperation.this.isRangeDownloaded(offset, length);
+        }
+
+        @Override
+        public void didReaderWait(int offset) {
+            moveToStreamOffset(offset);
+        }
+    });
 
     public static interface FileLoadOperationDelegate {
         public abstract void didFinishLoadingFile(FileLoadOperation operation);
@@ -177,6 +202,7 @@ public class FileLoadOperation {
         String fileNameFinal = null;
         String fileNameTemp = null;
         String fileNameIv = null;
+        String fileNameJournal = null;
         if (httpUrl != null) {
             if (!httpUrl.startsWith("http")) {
                 if (httpUrl.startsWith("thumb://")) {
@@ -201,6 +227,8 @@ public class FileLoadOperation {
             fileNameFinal = location.volume_id + "_" + location.local_id + ".jpg";
             if (key != null) {
                 fileNameIv = location.volume_id + "_" + location.local_id + ".iv";
+            } else {
+                fileNameJournal = location.volume_id + "_" + location.local_id + ".pt";
             }
             if (datacenter_id == Integer.MIN_VALUE || location.volume_id == Integer.MIN_VALUE) {
                 onlyCache = true;
@@ -212,6 +240,8 @@ public class FileLoadOperation {
             fileNameFinal = datacenter_id + "_" + location.id + ext;
             if (key != null) {
                 fileNameIv = datacenter_id + "_" + location.id + ".iv";
+            } else {
+                fileNameJournal = datacenter_id + "_" + location.id + ".pt";
             }
         }
 
@@ -343,17 +373,83 @@ public class FileLoadOperation {
                 return;
             }
             cacheFileTemp = new File(AndroidUtilities.getCacheDir(), fileNameTemp);
+            DownloadJournal leftoverJournal = null;
+            if (fileNameJournal != null) {
+                if (totalBytesCount > 0) {
+                    journal = new DownloadJournal(new File(AndroidUtilities.getCacheDir(), fileNameJournal));
+                } else {
+                    //size isn't known this time, but an earlier load of the file may have left one
+                    leftoverJournal = new DownloadJournal(new File(AndroidUtilities.getCacheDir(), fileNameJournal));
+                    if (!leftoverJournal.exists()) {
+                        leftoverJournal = null;
+                    }
+                }
+            }
             if (cacheFileTemp.exists()) {
                 downloadedBytes = (int)cacheFileTemp.length();
-                nextDownloadOffset = downloadedBytes = downloadedBytes / 1024 * 1024;
+                downloadedBytes = downloadedBytes / 1024 * 1024;
+                if (journal != null) {
+                    try {
+                        if (journal.exists()) {
+                            journal.load(cacheFileTemp.length());
+                        } else {
+                            //temp file of an in order download
+                            journal.add(0, downloadedBytes);
+                        }
+                        downloadedBytes = journal.getCompletedBytes();
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        journal.delete();
+                        journal = new DownloadJournal(new File(AndroidUtilities.getCacheDir(), fileNameJournal));
+                        downloadedBytes = 0;
+                    }
+                } else if (leftoverJournal != null) {
+                    //temp file has holes, only its downloaded start can be continued in order
+                    try {
+                        leftoverJournal.load(cacheFileTemp.length());
+                        downloadedBytes = leftoverJournal.getNextMissingOffset(0) / 1024 * 1024;
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        downloadedBytes = 0;
+                    }
+                    leftoverJournal.delete();
+                }
+            } else if (journal != null && journal.exists()) {
+                journal.delete();
+            } else if (leftoverJournal != null) {
+                leftoverJournal.delete();
+            }
+            if (journal != null) {
+                try {
+                    journal.flush();
+                    journal.create();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                    //without a journal the temp file has to be written in order from the start
+                    journal.delete();
+                    journal = null;
+                    downloadedBytes = 0;
+                }
             }
             if (fileNameIv != null) {
                 cacheIvTemp = new File(AndroidUtilities.getCacheDir(), fileNameIv);
                 try {
-                    fiv = new RandomAccessFile(cacheIvTemp, "rws");
+                    fiv = new RandomAccessFile(cacheIvTemp, "rw");
                     long len = cacheIvTemp.length();
-                    if (len > 0 && len % 32 == 0) {
-                        fiv.read(iv, 0, 32);
+                    byte[] savedIv = new byte[32];
+                    if (len == 32 + 4) {
+                        //iv of the last checkpoint and the offset it belongs to, the temp file may go further
+                        fiv.readFully(savedIv);
+                        int offset = fiv.readInt();
+                        if (offset <= downloadedBytes) {
+                            downloadedBytes = offset;
+                            System.arraycopy(savedIv, 0, iv, 0, 32);
+                        } else {
+                            downloadedBytes = 0;
+                        }
+                    } else if (len > 0 && len % 32 == 0) {
+                        fiv.readFully(savedIv);
+                        System.arraycopy(savedIv, 0, iv, 0, 32);
                     } else {
                         downloadedBytes = 0;
                     }
@@ -362,13 +458,16 @@ public class FileLoadOperation {
                     downloadedBytes = 0;
                 }
             }
+            nextDownloadOffset = journal != null ? 0 : downloadedBytes;
+            checkpointOffset = downloadedBytes;
             if (exist) {
                 cacheFileFinal.delete();
             }
             try {
-                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
-                if (downloadedBytes != 0) {
-                    fileOutputStream.seek(downloadedBytes);
+                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rw");
+                fileChannel = fileOutputStream.getChannel();
+                if (journal == null && fileChannel.size() > downloadedBytes) {
+                    fileChannel.truncate(downloadedBytes);
                 }
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
@@ -418,6 +517,7 @@ public class FileLoadOperation {
                     for (RequestInfo requestInfo : requestInfos) {
                         if (requestInfo.requestToken != 0) {
                             ConnectionsManager.getInstance().cancelRpc(requestInfo.requestToken, true, true);
+                            onRequestFinished(requestInfo, 0);
                         }
                     }
                 }
@@ -427,6 +527,7 @@ public class FileLoadOperation {
     }
 
     private void cleanup() {
+        streamSync.stop();
         if (httpUrl != null) {
             try {
                 if (httpConnectionStream != null) {
@@ -438,14 +539,25 @@ public class FileLoadOperation {
                 FileLog.e("tmessages", e);
             }
         } else {
+            try {
+                if (fileChannel != null && downloadedBytes != checkpointOffset) {
+                    saveCheckpoint();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
             try {
                 if (fileOutputStream != null) {
                     fileOutputStream.close();
                     fileOutputStream = null;
+                    fileChannel = null;
                 }
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
+            if (journal != null) {
+                journal.close();
+            }
 
             try {
                 if (fiv != null) {
@@ -463,6 +575,56 @@ public class FileLoadOperation {
             }
             delayedRequestInfos.clear();
         }
+        streamSync.notifyReaders();
+    }
+
+    /**
+     * File a stream reader reads from, the temp file while the download goes on.
+     */
+    public File getStreamFile() {
+        if (state == 3 || cacheFileTemp == null) {
+            return cacheFileFinal;
+        }
+        return cacheFileTemp;
+    }
+
+    public File getCacheFileFinal() {
+        return cacheFileFinal;
+    }
+
+    public boolean isRangeDownloaded(int offset, int length) {
+        if (state == 3) {
+            return true;
+        }
+        int total = totalBytesCount;
+        if (total > 0 && offset + length > total) {
+            length = total - offset;
+        }
+        if (length <= 0) {
+            return true;
+        }
+        DownloadJournal currentJournal = journal;
+        if (currentJournal != null) {
+            return currentJournal.isRangeCompleted(offset, length);
+        }
+        return offset + length <= downloadedBytes;
+    }
+
+    /**
+     * A journaled download moves on to the offset a stream reader waits at and comes back for
+     * what it skipped later.
+     */
+    private void moveToStreamOffset(final int offset) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (state != 1 || journal == null) {
+                    return;
+                }
+                nextDownloadOffset = offset / downloadChunkSize * downloadChunkSize;
+                startDownloadRequest();
+            }
+        });
     }
 
     private void onFinishLoadingFile() throws Exception {
@@ -474,6 +636,9 @@ public class FileLoadOperation {
         if (cacheIvTemp != null) {
             cacheIvTemp.delete();
         }
+        if (journal != null) {
+            journal.delete();
+        }
         final boolean renamed = cacheFileTemp.renameTo(cacheFileFinal);
         if (needBitmapCreate) {
             FileLoader.cacheOutQueue.postRunnable(new Runnable() {
@@ -598,6 +763,7 @@ public class FileLoadOperation {
                     }
                 });
             } else if (readed == -1) {
+                fileChannel.force(false);
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
                     @Override
@@ -630,10 +796,48 @@ public class FileLoadOperation {
         }
     }
 
+    /**
+     * Syncs the downloaded data and then records the iv it ends with or the ranges written since
+     * the last checkpoint, so that a download resumed after a crash never decrypts with an iv
+     * that doesn't belong to its offset or skips a range that didn't make it to disk.
+     */
+    private void saveCheckpoint() throws Exception {
+        if (fileChannel != null) {
+            fileChannel.force(false);
+        }
+        if (fiv != null && state != 3) {
+            byte[] data = new byte[32 + 4];
+            System.arraycopy(iv, 0, data, 0, 32);
+            data[32] = (byte)(downloadedBytes >> 24);
+            data[33] = (byte)(downloadedBytes >> 16);
+            data[34] = (byte)(downloadedBytes >> 8);
+            data[35] = (byte)downloadedBytes;
+            fiv.seek(0);
+            fiv.write(data);
+            fiv.getChannel().force(false);
+        }
+        if (journal != null && state != 3) {
+            journal.flush();
+        }
+        checkpointOffset = downloadedBytes;
+    }
+
+    private void onRequestFinished(RequestInfo requestInfo, int bytes) {
+        if (requestInfo.window != null) {
+            requestInfo.window.onRequestFinished(bytes, requestInfo.sendTime);
+            requestInfo.window = null;
+        }
+    }
+
     private void processRequestResult(RequestInfo requestInfo, TLRPC.TL_error error) {
         requestInfos.remove(requestInfo);
+        onRequestFinished(requestInfo, error == null && requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0);
         if (error == null) {
             try {
+                if (journal != null) {
+                    processJournalResult(requestInfo);
+                    return;
+                }
                 if (downloadedBytes != requestInfo.offset) {
                     if (state == 1) {
                         delayedRequestInfos.add(requestInfo);
@@ -649,15 +853,12 @@ public class FileLoadOperation {
                 if (key != null) {
                     Utilities.aesIgeEncryption(requestInfo.response.bytes.buffer, key, iv, false, true, 0, requestInfo.response.bytes.limit());
                 }
-                if (fileOutputStream != null) {
-                    FileChannel channel = fileOutputStream.getChannel();
-                    channel.write(requestInfo.response.bytes.buffer);
-                }
-                if (fiv != null) {
-                    fiv.seek(0);
-                    fiv.write(iv);
-                }
+                writePart(requestInfo);
                 downloadedBytes += requestInfo.response.bytes.limit();
+                streamSync.notifyReaders();
+                if (downloadedBytes - checkpointOffset >= checkpointInterval) {
+                    saveCheckpoint();
+                }
                 if (totalBytesCount > 0 && state == 1) {
                     delegate.didChangedLoadProgress(FileLoadOperation.this,  Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
                 }
@@ -674,7 +875,7 @@ public class FileLoadOperation {
                     }
                 }
 
-                if (totalBytesCount != downloadedBytes && downloadedBytes % downloadChunkSize == 0 || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
+                if (totalBytesCount != downloadedBytes && requestInfo.response.bytes.limit() == requestInfo.limit || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
                     startDownloadRequest();
                 } else {
                     onFinishLoadingFile();
@@ -704,7 +905,24 @@ public class FileLoadOperation {
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
-                if (downloadedBytes % downloadChunkSize == 0) {
+                if (journal != null) {
+                    //the file is shorter than it was announced
+                    totalBytesCount = Math.min(totalBytesCount, requestInfo.offset);
+                    try {
+                        if (downloadedBytes >= totalBytesCount) {
+                            onFinishLoadingFile();
+                        } else {
+                            startDownloadRequest();
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        cleanup();
+                        delegate.didFailedLoadingFile(FileLoadOperation.this);
+                    }
+                } else if (requestInfo.offset > downloadedBytes) {
+                    //parts before it are still coming, the file ends where this one starts
+                    totalBytesCount = totalBytesCount > 0 ? Math.min(totalBytesCount, requestInfo.offset) : requestInfo.offset;
+                } else if (downloadedBytes % downloadChunkSize == 0) {
                     try {
                         onFinishLoadingFile();
                     } catch (Exception e) {
@@ -726,36 +944,163 @@ public class FileLoadOperation {
         }
     }
 
-    private void startDownloadRequest() {
-        if (state != 1 || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= maxDownloadRequests) {
+    private void writePart(RequestInfo requestInfo) throws Exception {
+        if (fileChannel != null) {
+            ByteBuffer buffer = requestInfo.response.bytes.buffer;
+            long position = requestInfo.offset;
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Parts of a journaled download are written where they belong right away, whatever order
+     * they come in.
+     */
+    private void processJournalResult(RequestInfo requestInfo) throws Exception {
+        if (state != 1) {
             return;
         }
-        int count = 1;
+        int bytes = requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0;
+        if (bytes != 0) {
+            writePart(requestInfo);
+            downloadedBytes += journal.add(requestInfo.offset, bytes);
+        }
+        if (bytes < requestInfo.limit) {
+            totalBytesCount = Math.min(totalBytesCount, requestInfo.offset + bytes);
+        }
+        streamSync.notifyReaders();
+        if (downloadedBytes - checkpointOffset >= checkpointInterval) {
+            saveCheckpoint();
+        }
         if (totalBytesCount > 0) {
-            count = Math.max(0, maxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
+            delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
+        }
+        if (downloadedBytes >= totalBytesCount) {
+            onFinishLoadingFile();
+        } else {
+            startDownloadRequest();
         }
+    }
 
-        for (int a = 0; a < count; a++) {
+    /**
+     * Largest power of two part the offset is aligned to that leaves room for a few parts in the
+     * window, parts never cross a multiple of their own size.
+     */
+    private int getPartSize(int offset, int window) {
+        int partSize = downloadChunkSize;
+        while (partSize < maxDownloadChunkSize && partSize * 2 * 3 <= window && offset % (partSize * 2) == 0 && (totalBytesCount <= 0 || offset + partSize < totalBytesCount)) {
+            partSize *= 2;
+        }
+        return partSize;
+    }
+
+    /**
+     * Next offset of a journaled download that is neither downloaded nor requested, once the end
+     * is reached holes left behind by a moved stream reader are filled.
+     */
+    private int getNextJournalOffset(int offset) {
+        for (int pass = 0; pass < 2; pass++) {
+            boolean moved = true;
+            while (moved) {
+                int missingOffset = journal.getNextMissingOffset(offset);
+                moved = missingOffset != offset;
+                offset = missingOffset;
+                for (RequestInfo requestInfo : requestInfos) {
+                    if (requestInfo.offset <= offset && offset < requestInfo.offset + requestInfo.limit) {
+                        offset = requestInfo.offset + requestInfo.limit;
+                        moved = true;
+                    }
+                }
+            }
+            if (offset < totalBytesCount) {
+                return offset;
+            }
+            offset = 0;
+        }
+        return totalBytesCount;
+    }
+
+    private int getJournalMissingLength(int offset) {
+        int missingLength = journal.getMissingLength(offset);
+        for (RequestInfo requestInfo : requestInfos) {
+            if (requestInfo.offset > offset) {
+                missingLength = Math.min(missingLength, requestInfo.offset - offset);
+            }
+        }
+        return missingLength;
+    }
+
+    private void startDownloadRequest() {
+        if (state != 1 || journal == null && totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
+            return;
+        }
+        DownloadWindow downloadWindow = DownloadWindow.getInstance(datacenter_id);
+        int window = downloadWindow.getWindow();
+        int requestedBytes = 0;
+        for (RequestInfo requestInfo : requestInfos) {
+            requestedBytes += requestInfo.limit;
+        }
+        for (RequestInfo requestInfo : delayedRequestInfos) {
+            requestedBytes += requestInfo.limit;
+        }
+        int count = requestInfos.size() + delayedRequestInfos.size();
+        if (totalBytesCount <= 0 && count != 0) {
+            return;
+        }
+
+        while (count < maxDownloadRequests) {
+            if (journal != null) {
+                nextDownloadOffset = getNextJournalOffset(nextDownloadOffset);
+            }
             if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
                 break;
             }
-            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + downloadChunkSize >= totalBytesCount;
+            int partSize = getPartSize(nextDownloadOffset, window);
+            if (journal != null) {
+                int missingLength = getJournalMissingLength(nextDownloadOffset);
+                while (partSize > downloadChunkSize && partSize > missingLength) {
+                    partSize /= 2;
+                }
+            }
+            if (count != 0 && requestedBytes + partSize > window) {
+                break;
+            }
+            count++;
+            requestedBytes += partSize;
+            int nextPartSize = getPartSize(nextDownloadOffset + partSize, window);
+            boolean isLast = totalBytesCount <= 0 || count == maxDownloadRequests || requestedBytes + nextPartSize > window || nextDownloadOffset + partSize >= totalBytesCount;
             TLRPC.TL_upload_getFile req = new TLRPC.TL_upload_getFile();
             req.location = location;
             req.offset = nextDownloadOffset;
-            req.limit = downloadChunkSize;
-            nextDownloadOffset += downloadChunkSize;
+            req.limit = partSize;
+            nextDownloadOffset += partSize;
 
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = req.offset;
+            requestInfo.limit = req.limit;
+            requestInfo.sendTime = System.currentTimeMillis();
+            requestInfo.window = downloadWindow;
+            downloadWindow.onRequestSent();
+            int priority;
+            if (streamSync.isReadAhead(req.offset, req.limit)) {
+                priority = RPCRequest.RPCRequestPriorityInteractive;
+            } else {
+                priority = RPCRequest.priorityForRequest(req);
+            }
             requestInfo.requestToken = ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
                     requestInfo.response = (TLRPC.TL_upload_file) response;
                     processRequestResult(requestInfo, error);
                 }
-            }, null, true, RPCRequest.RPCRequestClassDownloadMedia, datacenter_id, isLast);
+            }, null, true, RPCRequest.RPCRequestClassDownloadMedia, datacenter_id, isLast, priority);
+            if (totalBytesCount <= 0) {
+                //without a size the end is only known from a short part, so parts go one at a time
+                break;
+            }
         }
     }
 }
@@ -497,6 +497,50 @@ public class FileLoader {
         return result[0];
     }
 
+    /**
+     * Opens a file that is loaded or loading for reading while it downloads, a queued load is
+     * started right away. Returns null if the file is neither loaded nor loading.
+     */
+    public FileStreamReader openStream(final String fileName) {
+        final Semaphore semaphore = new Semaphore(0);
+        final FileLoadOperation[] result = new FileLoadOperation[1];
+        fileLoaderQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                FileLoadOperation operation = loadOperationPaths.get(fileName);
+                if (operation != null && operation.state == 0) {
+                    if (audioLoadOperationQueue.remove(operation)) {
+                        currentAudioLoadOperationsCount++;
+                    } else if (photoLoadOperationQueue.remove(operation)) {
+                        currentPhotoLoadOperationsCount++;
+                    } else if (loadOperationQueue.remove(operation)) {
+                        currentLoadOperationsCount++;
+                    }
+                    operation.start();
+                }
+                result[0] = operation;
+                semaphore.release();
+            }
+        });
+        try {
+            semaphore.acquire();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        try {
+            if (result[0] != null) {
+                return new FileStreamReader(result[0]);
+            }
+            File file = new File(AndroidUtilities.getCacheDir(), fileName);
+            if (file.exists()) {
+                return new FileStreamReader(file);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        return null;
+    }
+
     public void loadFile(final TLRPC.Video video, final TLRPC.PhotoSize photo, final TLRPC.Document document, final TLRPC.Audio audio) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
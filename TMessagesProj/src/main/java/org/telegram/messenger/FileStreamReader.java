@@ -0,0 +1,125 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access reads from a file that may still be downloading, so playback can start before
+ * the download is done. A read of a range that isn't downloaded yet blocks until it is and
+ * moves the download to it. Reads block, so never use it on the UI thread or the stage queue.
+ */
+public class FileStreamReader {
+    private final FileLoadOperation operation;
+    private final DownloadStreamSync streamSync;
+    private RandomAccessFile stream;
+    private FileChannel channel;
+
+    public FileStreamReader(FileLoadOperation operation) throws IOException {
+        this.operation = operation;
+        streamSync = operation.streamSync;
+        try {
+            open(operation.getStreamFile());
+        } catch (FileNotFoundException e) {
+            //finished and renamed in between
+            open(operation.getCacheFileFinal());
+        }
+    }
+
+    public FileStreamReader(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Reads a file something else downloads, waiting on streamSync for the parts.
+     */
+    public FileStreamReader(File file, DownloadStreamSync streamSync) throws IOException {
+        operation = null;
+        this.streamSync = streamSync;
+        open(file);
+    }
+
+    private void open(File file) throws IOException {
+        if (file == null) {
+            throw new FileNotFoundException();
+        }
+        stream = new RandomAccessFile(file, "r");
+        channel = stream.getChannel();
+    }
+
+    /**
+     * @return size of the file, -1 while it downloads and the size isn't known
+     */
+    public long getSize() throws IOException {
+        if (operation != null && operation.state != 3) {
+            int total = operation.totalBytesCount;
+            return total > 0 ? total : -1;
+        }
+        return channel.size();
+    }
+
+    /**
+     * Reads up to length bytes at position, blocking until they are downloaded.
+     *
+     * @return number of bytes read, -1 at the end of the file
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (channel == null) {
+            throw new IOException("stream closed");
+        }
+        long size = getSize();
+        if (size >= 0 && position >= size) {
+            return -1;
+        }
+        if (size >= 0) {
+            length = (int)Math.min(length, size - position);
+        }
+        if (length <= 0) {
+            return 0;
+        }
+        if (streamSync != null) {
+            try {
+                if (!streamSync.waitForRange(this, (int)position, length)) {
+                    throw new IOException("download stopped");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position() - offset) < 0) {
+                break;
+            }
+        }
+        int read = dst.position() - offset;
+        return read == 0 ? -1 : read;
+    }
+
+    public void close() {
+        if (streamSync != null) {
+            streamSync.removeReader(this);
+        }
+        try {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+                channel = null;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+}
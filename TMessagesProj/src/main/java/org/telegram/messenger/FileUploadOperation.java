@@ -13,16 +13,34 @@ import java.io.FileInputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Locale;
 
+/**
+ * Uploads a file in parts. Parts are read, encrypted and hashed in file order on the file loader
+ * queue, so the MD5 and the AES-IGE iv chain don't depend on the order the server confirms them
+ * in. Several parts are sent at once and a few more are read ahead while they are in flight.
+ */
 public class FileUploadOperation {
+
+    private static class UploadPart {
+        private int size;
+        private TLObject request;
+        private long requestToken;
+    }
+
+    private final static int maxUploadRequests = 8;
+    private final static int maxUploadWindow = 1024 * 1024;
+    private final static int readAheadParts = 2;
+
     private int uploadChunkSize = 1024 * 32;
     private String uploadingFilePath;
     public int state = 0;
     private byte[] readBuffer;
     public FileUploadOperationDelegate delegate;
-    private long requestToken = 0;
     private int currentPartNum = 0;
+    private int uploadedPartsCount = 0;
+    private int maxRequests = 1;
     private long currentFileId;
     private boolean isLastPart = false;
     private long totalFileSize = 0;
@@ -33,6 +51,8 @@ public class FileUploadOperation {
     private byte[] ivChange;
     private int fingerprint = 0;
     private boolean isBigFile = false;
+    private ArrayList<UploadPart> readyParts = new ArrayList<UploadPart>();
+    private ArrayList<UploadPart> sendingParts = new ArrayList<UploadPart>();
     FileInputStream stream;
     MessageDigest mdEnc = null;
 
@@ -85,9 +105,35 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        if (requestToken != 0) {
-            ConnectionsManager.getInstance().cancelRpc(requestToken, true);
+        for (UploadPart part : sendingParts) {
+            ConnectionsManager.getInstance().cancelRpc(part.requestToken, true);
+        }
+        cleanup();
+        delegate.didFailedUploadingFile(this);
+    }
+
+    private void cleanup() {
+        sendingParts.clear();
+        for (UploadPart part : readyParts) {
+            part.request.freeResources();
+        }
+        readyParts.clear();
+        try {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void onUploadFailed() {
+        state = 3;
+        for (UploadPart part : sendingParts) {
+            ConnectionsManager.getInstance().cancelRpc(part.requestToken, true);
         }
+        cleanup();
         delegate.didFailedUploadingFile(this);
     }
 
@@ -96,8 +142,6 @@ public class FileUploadOperation {
             return;
         }
 
-        TLObject finalRequest;
-
         try {
             if (stream == null) {
                 File cacheFile = new File(uploadingFilePath);
@@ -120,95 +164,126 @@ public class FileUploadOperation {
                 uploadChunkSize *= 1024;
                 totalPartsCount = (int) Math.ceil((float) totalFileSize / (float) uploadChunkSize);
                 readBuffer = new byte[uploadChunkSize];
+                maxRequests = Math.max(2, Math.min(maxUploadRequests, maxUploadWindow / uploadChunkSize));
             }
 
-            int readed = stream.read(readBuffer);
-            int toAdd = 0;
-            if (key != null && readed % 16 != 0) {
-                toAdd += 16 - readed % 16;
-            }
-            ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(readed + toAdd);
-            if (readed != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                isLastPart = true;
-            }
-            sendBuffer.writeRaw(readBuffer, 0, readed);
-            if (key != null) {
-                for (int a = 0; a < toAdd; a++) {
-                    sendBuffer.writeByte(0);
+            while (sendingParts.size() < maxRequests) {
+                if (readyParts.isEmpty()) {
+                    if (isLastPart) {
+                        break;
+                    }
+                    readPart();
                 }
-                Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, readed + toAdd);
+                sendPart(readyParts.remove(0));
             }
-            sendBuffer.rewind();
-            if (!isBigFile) {
-                mdEnc.update(sendBuffer.buffer);
+            while (!isLastPart && readyParts.size() < readAheadParts) {
+                readPart();
             }
-            if (isBigFile) {
-                TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                req.file_total_parts = totalPartsCount;
-                req.bytes = sendBuffer;
-                finalRequest = req;
-            } else {
-                TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                req.bytes = sendBuffer;
-                finalRequest = req;
-            }
-            currentUploaded += readed;
         } catch (Exception e) {
             FileLog.e("tmessages", e);
-            delegate.didFailedUploadingFile(this);
-            return;
+            onUploadFailed();
         }
-        requestToken = ConnectionsManager.getInstance().performRpc(finalRequest, new RPCRequest.RPCRequestDelegate() {
+    }
+
+    private void readPart() throws Exception {
+        int readed = Math.max(0, stream.read(readBuffer));
+        int toAdd = 0;
+        if (key != null && readed % 16 != 0) {
+            toAdd += 16 - readed % 16;
+        }
+        ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(readed + toAdd);
+        if (readed != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
+            isLastPart = true;
+        }
+        sendBuffer.writeRaw(readBuffer, 0, readed);
+        if (key != null) {
+            for (int a = 0; a < toAdd; a++) {
+                sendBuffer.writeByte(0);
+            }
+            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, readed + toAdd);
+        }
+        sendBuffer.rewind();
+        if (!isBigFile) {
+            mdEnc.update(sendBuffer.buffer);
+        }
+        UploadPart part = new UploadPart();
+        part.size = readed;
+        if (isBigFile) {
+            TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
+            req.file_part = currentPartNum;
+            req.file_id = currentFileId;
+            req.file_total_parts = totalPartsCount;
+            req.bytes = sendBuffer;
+            part.request = req;
+        } else {
+            TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
+            req.file_part = currentPartNum;
+            req.file_id = currentFileId;
+            req.bytes = sendBuffer;
+            part.request = req;
+        }
+        currentPartNum++;
+        readyParts.add(part);
+    }
+
+    private void sendPart(final UploadPart part) {
+        sendingParts.add(part);
+        part.requestToken = ConnectionsManager.getInstance().performRpc(part.request, new RPCRequest.RPCRequestDelegate() {
             @Override
-            public void run(TLObject response, TLRPC.TL_error error) {
-                requestToken = 0;
-                if (error == null) {
-                    if (response instanceof TLRPC.TL_boolTrue) {
-                        currentPartNum++;
-                        delegate.didChangedUploadProgress(FileUploadOperation.this, (float) currentUploaded / (float) totalFileSize);
-                        if (isLastPart) {
-                            state = 3;
-                            if (key == null) {
-                                TLRPC.InputFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputFileBig();
-                                } else {
-                                    result = new TLRPC.TL_inputFile();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null);
-                            } else {
-                                TLRPC.InputEncryptedFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                                } else {
-                                    result = new TLRPC.TL_inputEncryptedFileUploaded();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.key_fingerprint = fingerprint;
-                                result.iv = iv;
-                                result.key = key;
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result);
-                            }
-                        } else {
-                            startUploadRequest();
-                        }
-                    } else {
-                        delegate.didFailedUploadingFile(FileUploadOperation.this);
+            public void run(final TLObject response, final TLRPC.TL_error error) {
+                FileLoader.fileLoaderQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        processPartResult(part, response, error);
                     }
+                });
+            }
+        }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID);
+    }
+
+    private void processPartResult(UploadPart part, TLObject response, TLRPC.TL_error error) {
+        if (state != 1 || !sendingParts.remove(part)) {
+            return;
+        }
+        if (error != null || !(response instanceof TLRPC.TL_boolTrue)) {
+            onUploadFailed();
+            return;
+        }
+        uploadedPartsCount++;
+        currentUploaded += part.size;
+        delegate.didChangedUploadProgress(FileUploadOperation.this, (float) currentUploaded / (float) totalFileSize);
+        if (isLastPart && readyParts.isEmpty() && sendingParts.isEmpty()) {
+            state = 3;
+            cleanup();
+            if (key == null) {
+                TLRPC.InputFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputFileBig();
                 } else {
-                    delegate.didFailedUploadingFile(FileUploadOperation.this);
+                    result = new TLRPC.TL_inputFile();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
                 }
+                result.parts = uploadedPartsCount;
+                result.id = currentFileId;
+                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null);
+            } else {
+                TLRPC.InputEncryptedFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
+                } else {
+                    result = new TLRPC.TL_inputEncryptedFileUploaded();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+                }
+                result.parts = uploadedPartsCount;
+                result.id = currentFileId;
+                result.key_fingerprint = fingerprint;
+                result.iv = iv;
+                result.key = key;
+                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result);
             }
-        }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID);
+        } else {
+            startUploadRequest();
+        }
     }
 }
@@ -146,6 +146,16 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                         new BigInteger("010001", 16)});
                 map.put("fingerprint", 0x71e025b6c76033e3L);
                 serverPublicKeys.add(map);
+
+                if (BuildVars.TEST_SERVER_PUBLIC_KEY != null) {
+                    BigInteger[] key = new BigInteger[]{
+                            new BigInteger(BuildVars.TEST_SERVER_PUBLIC_KEY, 16),
+                            new BigInteger("010001", 16)};
+                    map = new HashMap<String, Object>();
+                    map.put("key", key);
+                    map.put("fingerprint", computeFingerprint(key));
+                    serverPublicKeys.add(map);
+                }
             }
         }
 
@@ -160,6 +170,26 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
         return null;
     }
 
+    /**
+     * Lower 64 bits of SHA1 over the TL serialized modulus and exponent, as the server computes
+     * the fingerprints it sends in resPQ.
+     */
+    static long computeFingerprint(BigInteger[] key) {
+        SerializedData data = new SerializedData();
+        for (BigInteger value : key) {
+            byte[] bytes = value.toByteArray();
+            if (bytes[0] == 0 && bytes.length > 1) {
+                data.writeByteArray(bytes, 1, bytes.length - 1);
+            } else {
+                data.writeByteArray(bytes);
+            }
+        }
+        byte[] hash = Utilities.computeSHA1(data.toByteArray());
+        ByteBuffer buffer = ByteBuffer.wrap(hash, hash.length - 8, 8);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getLong();
+    }
+
     long generateMessageId() {
         long messageId = (long)((((double)System.currentTimeMillis()) * 4294967296.0) / 1000.0);
         if (messageId <= lastOutgoingMessageId) {
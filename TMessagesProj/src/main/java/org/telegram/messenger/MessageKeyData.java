@@ -8,7 +8,129 @@
 
 package org.telegram.messenger;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
 public class MessageKeyData {
     public byte[] aesKey;
     public byte[] aesIv;
+
+    private static class DerivationScratch {
+        public MessageDigest sha1;
+        public byte[] input = new byte[48];
+        public byte[] sha1_a = new byte[20];
+        public byte[] sha1_b = new byte[20];
+        public byte[] sha1_c = new byte[20];
+        public byte[] sha1_d = new byte[20];
+        public byte[] digest = new byte[20];
+    }
+
+    private static final ThreadLocal<DerivationScratch> derivationScratch = new ThreadLocal<DerivationScratch>() {
+        @Override
+        protected DerivationScratch initialValue() {
+            DerivationScratch scratch = new DerivationScratch();
+            try {
+                scratch.sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            return scratch;
+        }
+    };
+
+    public static MessageKeyData generateMessageKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
+        MessageKeyData keyData = new MessageKeyData();
+        if (authKey == null || authKey.length == 0) {
+            keyData.aesIv = null;
+            keyData.aesKey = null;
+            return keyData;
+        }
+        generateMessageKeyData(authKey, messageKey, 0, incoming, keyData);
+        return keyData;
+    }
+
+    /**
+     * Derives aesKey and aesIv into keyData, allocating its arrays only on first use. Digests and
+     * intermediate buffers are per thread, so repeated calls with the same keyData don't allocate.
+     *
+     * @return false if there is no auth key
+     */
+    public static boolean generateMessageKeyData(byte[] authKey, byte[] messageKey, int messageKeyOffset, boolean incoming, MessageKeyData keyData) {
+        if (authKey == null || authKey.length == 0) {
+            return false;
+        }
+        if (keyData.aesKey == null || keyData.aesKey.length != 32) {
+            keyData.aesKey = new byte[32];
+        }
+        if (keyData.aesIv == null || keyData.aesIv.length != 32) {
+            keyData.aesIv = new byte[32];
+        }
+
+        DerivationScratch scratch = derivationScratch.get();
+        byte[] input = scratch.input;
+        int x = incoming ? 8 : 0;
+
+        System.arraycopy(messageKey, messageKeyOffset, input, 0, 16);
+        System.arraycopy(authKey, x, input, 16, 32);
+        digest(scratch, input, 48, scratch.sha1_a);
+
+        System.arraycopy(authKey, 32 + x, input, 0, 16);
+        System.arraycopy(messageKey, messageKeyOffset, input, 16, 16);
+        System.arraycopy(authKey, 48 + x, input, 32, 16);
+        digest(scratch, input, 48, scratch.sha1_b);
+
+        System.arraycopy(authKey, 64 + x, input, 0, 32);
+        System.arraycopy(messageKey, messageKeyOffset, input, 32, 16);
+        digest(scratch, input, 48, scratch.sha1_c);
+
+        System.arraycopy(messageKey, messageKeyOffset, input, 0, 16);
+        System.arraycopy(authKey, 96 + x, input, 16, 32);
+        digest(scratch, input, 48, scratch.sha1_d);
+
+        byte[] aesKey = keyData.aesKey;
+        System.arraycopy(scratch.sha1_a, 0, aesKey, 0, 8);
+        System.arraycopy(scratch.sha1_b, 8, aesKey, 8, 12);
+        System.arraycopy(scratch.sha1_c, 4, aesKey, 20, 12);
+
+        byte[] aesIv = keyData.aesIv;
+        System.arraycopy(scratch.sha1_a, 8, aesIv, 0, 12);
+        System.arraycopy(scratch.sha1_b, 0, aesIv, 12, 8);
+        System.arraycopy(scratch.sha1_c, 16, aesIv, 20, 4);
+        System.arraycopy(scratch.sha1_d, 0, aesIv, 24, 8);
+        return true;
+    }
+
+    /**
+     * SHA-1 of buffer[offset, offset + length) with the per thread digest. The returned array is
+     * reused by the next call on the same thread. Position and limit of buffer are restored.
+     */
+    static byte[] computeSHA1(ByteBuffer buffer, int offset, int length) {
+        DerivationScratch scratch = derivationScratch.get();
+        int oldPosition = buffer.position();
+        int oldLimit = buffer.limit();
+        try {
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            scratch.sha1.update(buffer);
+            scratch.sha1.digest(scratch.digest, 0, 20);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            scratch.sha1.reset();
+            return null;
+        } finally {
+            buffer.limit(oldLimit);
+            buffer.position(oldPosition);
+        }
+        return scratch.digest;
+    }
+
+    private static void digest(DerivationScratch scratch, byte[] input, int length, byte[] output) {
+        try {
+            scratch.sha1.update(input, 0, length);
+            scratch.sha1.digest(output, 0, 20);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            scratch.sha1.reset();
+        }
+    }
 }
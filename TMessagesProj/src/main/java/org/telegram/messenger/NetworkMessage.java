@@ -12,4 +12,5 @@ public class NetworkMessage {
     public TLRPC.TL_protoMessage protoMessage;
     public Object rawRequest;
     public long requestId;
+    public int priority = RPCRequest.RPCRequestPriorityDefault;
 }
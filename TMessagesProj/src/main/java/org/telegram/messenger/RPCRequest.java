@@ -30,6 +30,11 @@ public class RPCRequest {
 
     static int RPCRequestClassTransportMask = (RPCRequestClassGeneric | RPCRequestClassDownloadMedia | RPCRequestClassUploadMedia);
 
+    public static int RPCRequestPriorityInteractive = 0;
+    public static int RPCRequestPriorityDefault = 1;
+    public static int RPCRequestPriorityBackground = 2;
+    static int RPCRequestPrioritiesCount = 3;
+
     long token;
     boolean cancelled;
 
@@ -52,6 +57,8 @@ public class RPCRequest {
     int runningMessageSeqNo;
     int runningDatacenterId;
     int transportChannelToken;
+    //download or upload connection the request was sent on, kept for resends
+    int connectionNum;
 
     int runningStartTime;
     int runningMinStartTime;
@@ -60,6 +67,8 @@ public class RPCRequest {
 
     boolean initRequest = false;
 
+    int priority = RPCRequestPriorityDefault;
+
     ArrayList<Long> respondsToMessageIds = new ArrayList<Long>();
 
     public void addRespondMessageId(long messageId) {
@@ -69,5 +78,40 @@ public class RPCRequest {
     boolean respondsToMessageId(long messageId) {
         return runningMessageId == messageId || respondsToMessageIds.contains(messageId);
     }
+
+    /**
+     * Priority for requests that don't set one: what the user waits for right now goes first,
+     * bulk and periodic requests last.
+     */
+    static int priorityForRequest(TLObject request) {
+        if (request instanceof TLRPC.TL_messages_sendMessage ||
+                request instanceof TLRPC.TL_messages_sendMedia ||
+                request instanceof TLRPC.TL_messages_forwardMessages ||
+                request instanceof TLRPC.TL_messages_forwardMessage ||
+                request instanceof TLRPC.TL_messages_sendBroadcast ||
+                request instanceof TLRPC.TL_messages_sendEncrypted ||
+                request instanceof TLRPC.TL_messages_sendEncryptedFile ||
+                request instanceof TLRPC.TL_messages_sendEncryptedService ||
+                request instanceof TLRPC.TL_messages_getHistory ||
+                request instanceof TLRPC.TL_messages_search ||
+                request instanceof TLRPC.TL_contacts_search ||
+                request instanceof TLRPC.TL_auth_sendCode ||
+                request instanceof TLRPC.TL_auth_sendCall ||
+                request instanceof TLRPC.TL_auth_signIn ||
+                request instanceof TLRPC.TL_auth_signUp) {
+            return RPCRequestPriorityInteractive;
+        } else if (request instanceof TLRPC.TL_users_getFullUser ||
+                request instanceof TLRPC.TL_users_getUsers ||
+                request instanceof TLRPC.TL_contacts_importContacts ||
+                request instanceof TLRPC.TL_contacts_getContacts ||
+                request instanceof TLRPC.TL_contacts_getStatuses ||
+                request instanceof TLRPC.TL_account_updateStatus ||
+                request instanceof TLRPC.TL_photos_getUserPhotos ||
+                request instanceof TLRPC.TL_auth_sendInvites ||
+                request instanceof TLRPC.TL_get_future_salts) {
+            return RPCRequestPriorityBackground;
+        }
+        return RPCRequestPriorityDefault;
+    }
 }
 
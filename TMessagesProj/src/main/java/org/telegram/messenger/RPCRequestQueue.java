@@ -0,0 +1,409 @@
+/*
+ * This is the source code of Telegram for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bookkeeping of queued and running rpc requests. Queued requests are kept in one queue per
+ * transport class and priority in submission order, requests that don't wait for an answer go to
+ * a separate unlimited queue. All queues and the running set are keyed by token, running requests
+ * are also found by any message id they were sent with. Running media requests sent on a connection
+ * that is still up are parked by channel token, there is nothing to check for them until that
+ * connection goes away. Not thread safe, only used on the stage queue.
+ */
+class RPCRequestQueue {
+    public static final int QUEUE_GENERIC = 0;
+    public static final int QUEUE_DOWNLOAD = 1;
+    public static final int QUEUE_UPLOAD = 2;
+    public static final int QUEUE_UNLIMITED = 3;
+    public static final int QUEUES_COUNT = 4;
+
+    public interface RequestDispatcher {
+        /**
+         * @return true if the request was sent or dropped and leaves the queue
+         */
+        public abstract boolean dispatch(RPCRequest request);
+    }
+
+    public interface ChannelTokenChecker {
+        /**
+         * @return true if the connection the request belongs to still has the request's channel token
+         */
+        public abstract boolean isChannelTokenValid(RPCRequest request);
+    }
+
+    private static final int[] defaultRunningLimits = new int[] {60, 5, 5, Integer.MAX_VALUE};
+    //per priority limits inside a class, background requests always leave room for the rest
+    private static final int[][] defaultPriorityRunningLimits = new int[][] {
+            {60, 50, 16},
+            {5, 5, 3},
+            {5, 5, 3},
+            {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE}
+    };
+    private static final int[] priorityWeights = new int[] {16, 4, 1};
+    private static final long STRIDE = 1 << 16;
+
+    private final int[] runningLimits = defaultRunningLimits.clone();
+    private final int[][] priorityRunningLimits = new int[QUEUES_COUNT][];
+    //one queue per class and priority, see getQueue
+    private final ArrayList<LinkedHashMap<Long, RPCRequest>> queues;
+    private final LinkedHashMap<Long, RPCRequest> running = new LinkedHashMap<Long, RPCRequest>();
+    private final HashMap<Long, RPCRequest> runningByMessageId = new HashMap<Long, RPCRequest>();
+    //running requests that are not parked
+    private final LinkedHashMap<Long, RPCRequest> activeRunning = new LinkedHashMap<Long, RPCRequest>();
+    private final HashMap<Integer, LinkedHashMap<Long, RPCRequest>> parkedRunning = new HashMap<Integer, LinkedHashMap<Long, RPCRequest>>();
+    private final int[] runningCounts = new int[QUEUES_COUNT];
+    private final int[][] priorityRunningCounts;
+    //running requests per connection of a datacenter's pool, see connectionKey
+    private final HashMap<Long, int[]> connectionRunningCounts = new HashMap<Long, int[]>();
+    private final long[][] passes;
+    private final long[] virtualTimes = new long[QUEUES_COUNT];
+
+    public RPCRequestQueue() {
+        int prioritiesCount = RPCRequest.RPCRequestPrioritiesCount;
+        queues = new ArrayList<LinkedHashMap<Long, RPCRequest>>(QUEUES_COUNT * prioritiesCount);
+        priorityRunningCounts = new int[QUEUES_COUNT][prioritiesCount];
+        passes = new long[QUEUES_COUNT][prioritiesCount];
+        for (int a = 0; a < QUEUES_COUNT; a++) {
+            priorityRunningLimits[a] = defaultPriorityRunningLimits[a].clone();
+            for (int b = 0; b < prioritiesCount; b++) {
+                queues.add(new LinkedHashMap<Long, RPCRequest>());
+            }
+        }
+    }
+
+    /**
+     * Changes how many requests of a class may run at once, the per priority limits keep their
+     * share of it.
+     */
+    public void setRunningLimit(int queue, int limit) {
+        int defaultLimit = defaultRunningLimits[queue];
+        if (defaultLimit == Integer.MAX_VALUE) {
+            return;
+        }
+        for (int a = 0; a < RPCRequest.RPCRequestPrioritiesCount; a++) {
+            priorityRunningLimits[queue][a] = Math.max(1, (int)((long)defaultPriorityRunningLimits[queue][a] * limit / defaultLimit));
+        }
+        runningLimits[queue] = limit;
+    }
+
+    public int getRunningLimit(int queue) {
+        return runningLimits[queue];
+    }
+
+    private LinkedHashMap<Long, RPCRequest> getQueue(int queue, int priority) {
+        return queues.get(queue * RPCRequest.RPCRequestPrioritiesCount + priority);
+    }
+
+    static int queueForRequest(RPCRequest request) {
+        if (!request.requiresCompletion) {
+            return QUEUE_UNLIMITED;
+        } else if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            return QUEUE_GENERIC;
+        } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+            return QUEUE_UPLOAD;
+        } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            return QUEUE_DOWNLOAD;
+        }
+        return QUEUE_UNLIMITED;
+    }
+
+    public void enqueue(RPCRequest request) {
+        int queue = queueForRequest(request);
+        LinkedHashMap<Long, RPCRequest> priorityQueue = getQueue(queue, request.priority);
+        if (priorityQueue.isEmpty()) {
+            //an idle priority rejoins at the current virtual time instead of catching up for the time it was idle
+            passes[queue][request.priority] = Math.max(passes[queue][request.priority], virtualTimes[queue]);
+        }
+        priorityQueue.put(request.token, request);
+    }
+
+    /**
+     * Offers the queued requests of one class to the dispatcher in weighted fair order across
+     * priorities. Each dispatched request advances its priority's pass by STRIDE / weight, the
+     * priority with the lowest pass goes next. Requests the dispatcher can't send yet are skipped
+     * without charging their priority. Stops when the class or all priorities are at their
+     * running limits.
+     *
+     * @return true if some request was skipped for a reason other than the running limits
+     */
+    public boolean dispatch(int queue, RequestDispatcher dispatcher) {
+        int prioritiesCount = RPCRequest.RPCRequestPrioritiesCount;
+        ArrayList<Iterator<RPCRequest>> iterators = new ArrayList<Iterator<RPCRequest>>(prioritiesCount);
+        for (int a = 0; a < prioritiesCount; a++) {
+            iterators.add(getQueue(queue, a).values().iterator());
+        }
+        boolean blocked = false;
+        while (runningCounts[queue] < runningLimits[queue]) {
+            int selected = -1;
+            for (int a = 0; a < prioritiesCount; a++) {
+                if (!iterators.get(a).hasNext() || priorityRunningCounts[queue][a] >= priorityRunningLimits[queue][a]) {
+                    continue;
+                }
+                if (selected == -1 || passes[queue][a] < passes[queue][selected]) {
+                    selected = a;
+                }
+            }
+            if (selected == -1) {
+                break;
+            }
+            Iterator<RPCRequest> iterator = iterators.get(selected);
+            RPCRequest request = iterator.next();
+            if (request.cancelled) {
+                iterator.remove();
+            } else if (dispatcher.dispatch(request)) {
+                iterator.remove();
+                virtualTimes[queue] = passes[queue][selected];
+                passes[queue][selected] += STRIDE / priorityWeights[selected];
+            } else {
+                blocked = true;
+            }
+        }
+        return blocked;
+    }
+
+    public boolean isQueueEmpty(int queue) {
+        for (int a = 0; a < RPCRequest.RPCRequestPrioritiesCount; a++) {
+            if (!getQueue(queue, a).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Snapshot of the queued requests of one class, priority by priority.
+     */
+    public ArrayList<RPCRequest> queue(int queue) {
+        ArrayList<RPCRequest> result = new ArrayList<RPCRequest>();
+        for (int a = 0; a < RPCRequest.RPCRequestPrioritiesCount; a++) {
+            result.addAll(getQueue(queue, a).values());
+        }
+        return result;
+    }
+
+    public RPCRequest removeQueued(long token) {
+        for (int a = 0; a < QUEUES_COUNT; a++) {
+            for (int b = 0; b < RPCRequest.RPCRequestPrioritiesCount; b++) {
+                RPCRequest request = getQueue(a, b).remove(token);
+                if (request != null) {
+                    return request;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks a request as running, the caller has already removed it from its queue or is
+     * about to.
+     */
+    public void addRunning(RPCRequest request) {
+        running.put(request.token, request);
+        index(request);
+        int queue = queueForRequest(request);
+        runningCounts[queue]++;
+        priorityRunningCounts[queue][request.priority]++;
+        addConnectionRunningCount(queue, request, 1);
+        if (request.runningMessageId != 0) {
+            runningByMessageId.put(request.runningMessageId, request);
+        }
+        for (Long messageId : request.respondsToMessageIds) {
+            runningByMessageId.put(messageId, request);
+        }
+    }
+
+    private static long connectionKey(int queue, int datacenterId) {
+        return ((long)datacenterId << 8) | queue;
+    }
+
+    private void addConnectionRunningCount(int queue, RPCRequest request, int delta) {
+        if (queue != QUEUE_DOWNLOAD && queue != QUEUE_UPLOAD) {
+            return;
+        }
+        long key = connectionKey(queue, request.runningDatacenterId);
+        int[] counts = connectionRunningCounts.get(key);
+        if (counts == null || counts.length <= request.connectionNum) {
+            int[] newCounts = new int[request.connectionNum + 1];
+            if (counts != null) {
+                System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            }
+            counts = newCounts;
+            connectionRunningCounts.put(key, counts);
+        }
+        counts[request.connectionNum] += delta;
+    }
+
+    /**
+     * How many requests of a class run on a connection of a datacenter's pool, the datacenter
+     * id is the one the requests were made with.
+     */
+    public int getConnectionRunningCount(int queue, int datacenterId, int connectionNum) {
+        int[] counts = connectionRunningCounts.get(connectionKey(queue, datacenterId));
+        return counts != null && connectionNum < counts.length ? counts[connectionNum] : 0;
+    }
+
+    public Collection<RPCRequest> running() {
+        return running.values();
+    }
+
+    private static boolean canPark(RPCRequest request) {
+        return request.transportChannelToken != 0 && (request.flags & (RPCRequest.RPCRequestClassDownloadMedia | RPCRequest.RPCRequestClassUploadMedia)) != 0 &&
+                (request.flags & (RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassTryDifferentDc)) == 0;
+    }
+
+    private void index(RPCRequest request) {
+        if (canPark(request)) {
+            LinkedHashMap<Long, RPCRequest> parked = parkedRunning.get(request.transportChannelToken);
+            if (parked == null) {
+                parked = new LinkedHashMap<Long, RPCRequest>();
+                parkedRunning.put(request.transportChannelToken, parked);
+            }
+            parked.put(request.token, request);
+        } else {
+            activeRunning.put(request.token, request);
+        }
+    }
+
+    private void unindex(RPCRequest request) {
+        if (activeRunning.remove(request.token) != null) {
+            return;
+        }
+        LinkedHashMap<Long, RPCRequest> parked = parkedRunning.get(request.transportChannelToken);
+        if (parked != null && parked.remove(request.token) != null && parked.isEmpty()) {
+            parkedRunning.remove(request.transportChannelToken);
+        }
+    }
+
+    /**
+     * Changes the channel token of a request, a running one is parked or unparked by it.
+     */
+    public void setTransportChannelToken(RPCRequest request, int channelToken) {
+        boolean isRunning = running.get(request.token) == request;
+        if (isRunning) {
+            unindex(request);
+        }
+        request.transportChannelToken = channelToken;
+        if (isRunning) {
+            index(request);
+        }
+    }
+
+    /**
+     * Snapshot of the running requests that may need to be sent or resent. Parked requests
+     * whose channel token the checker no longer accepts are unparked first, one check per token.
+     */
+    public ArrayList<RPCRequest> activeRunning(ChannelTokenChecker checker) {
+        Iterator<LinkedHashMap<Long, RPCRequest>> iterator = parkedRunning.values().iterator();
+        while (iterator.hasNext()) {
+            LinkedHashMap<Long, RPCRequest> parked = iterator.next();
+            if (!checker.isChannelTokenValid(parked.values().iterator().next())) {
+                activeRunning.putAll(parked);
+                iterator.remove();
+            }
+        }
+        return new ArrayList<RPCRequest>(activeRunning.values());
+    }
+
+    public RPCRequest getRunning(long token) {
+        return running.get(token);
+    }
+
+    public RPCRequest removeRunning(long token) {
+        RPCRequest request = running.remove(token);
+        if (request != null) {
+            unindex(request);
+            int queue = queueForRequest(request);
+            runningCounts[queue]--;
+            priorityRunningCounts[queue][request.priority]--;
+            addConnectionRunningCount(queue, request, -1);
+            runningByMessageId.remove(request.runningMessageId);
+            for (Long messageId : request.respondsToMessageIds) {
+                runningByMessageId.remove(messageId);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Running request that the given message id belongs to, either as the current message or
+     * one it was sent with before.
+     */
+    public RPCRequest runningRespondingTo(long messageId) {
+        RPCRequest request = runningByMessageId.get(messageId);
+        if (request != null && request.respondsToMessageId(messageId)) {
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Running request currently sent with the given message id.
+     */
+    public RPCRequest runningWithMessageId(long messageId) {
+        RPCRequest request = runningByMessageId.get(messageId);
+        if (request != null && request.runningMessageId == messageId) {
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the current message id of a request, an id that was not kept as a responding
+     * one is forgotten.
+     */
+    public void setRunningMessageId(RPCRequest request, long messageId) {
+        if (request.runningMessageId != 0 && running.get(request.token) == request && !request.respondsToMessageIds.contains(request.runningMessageId)) {
+            runningByMessageId.remove(request.runningMessageId);
+        }
+        request.runningMessageId = messageId;
+        if (messageId != 0 && running.get(request.token) == request) {
+            runningByMessageId.put(messageId, request);
+        }
+    }
+
+    /**
+     * Keeps the current message id as one the request still answers to and clears it.
+     */
+    public void retireRunningMessageId(RPCRequest request) {
+        if (request.runningMessageId != 0) {
+            request.addRespondMessageId(request.runningMessageId);
+        }
+        request.runningMessageId = 0;
+    }
+
+    /**
+     * Empties all queues and the running set, returns the queued requests first.
+     */
+    public ArrayList<RPCRequest> clear() {
+        ArrayList<RPCRequest> result = new ArrayList<RPCRequest>();
+        for (int a = 0; a < QUEUES_COUNT; a++) {
+            for (int b = 0; b < RPCRequest.RPCRequestPrioritiesCount; b++) {
+                result.addAll(getQueue(a, b).values());
+                getQueue(a, b).clear();
+                priorityRunningCounts[a][b] = 0;
+                passes[a][b] = 0;
+            }
+            runningCounts[a] = 0;
+            virtualTimes[a] = 0;
+        }
+        result.addAll(running.values());
+        running.clear();
+        runningByMessageId.clear();
+        activeRunning.clear();
+        parkedRunning.clear();
+        connectionRunningCounts.clear();
+        return result;
+    }
+}
@@ -8,45 +8,49 @@
 
 package org.telegram.messenger;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class SerializedData extends AbsSerializedData {
     protected boolean isOut = true;
-    private ByteArrayOutputStream outbuf;
-    private DataOutputStream out;
-    private ByteArrayInputStream inbuf;
-    private DataInputStream in;
+    private ByteBuffer buffer;
+    private boolean direct = false;
     private boolean justCalc = false;
     private int len;
+    private int lengthHeaderSize;
 
     public SerializedData() {
-        outbuf = new ByteArrayOutputStream();
-        out = new DataOutputStream(outbuf);
+        this(64);
     }
 
     public SerializedData(boolean calculate) {
         if (!calculate) {
-            outbuf = new ByteArrayOutputStream();
-            out = new DataOutputStream(outbuf);
+            buffer = allocate(64);
         }
         justCalc = calculate;
         len = 0;
     }
 
     public SerializedData(int size) {
-        outbuf = new ByteArrayOutputStream(size);
-        out = new DataOutputStream(outbuf);
+        buffer = allocate(Math.max(size, 4));
+    }
+
+    /**
+     * @param direct allocate the backing buffer outside of the java heap, so it can be handed to
+     *               channels and native code without a copy. {@link #array()} is not available then.
+     */
+    public SerializedData(int size, boolean direct) {
+        this.direct = direct;
+        buffer = allocate(Math.max(size, 4));
     }
 
     public SerializedData(byte[] data) {
         isOut = false;
-        inbuf = new ByteArrayInputStream(data);
-        in = new DataInputStream(inbuf);
+        buffer = ByteBuffer.wrap(data);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public SerializedData(File file) throws Exception {
@@ -56,46 +60,45 @@ public class SerializedData extends AbsSerializedData {
         is.close();
 
         isOut = false;
-        inbuf = new ByteArrayInputStream(data);
-        in = new DataInputStream(inbuf);
+        buffer = ByteBuffer.wrap(data);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer allocate(int size) {
+        ByteBuffer result = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        return result;
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + count);
+        ByteBuffer newBuffer = allocate(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
     }
 
     public void writeInt32(int x) {
         if (!justCalc) {
-            writeInt32(x, out);
+            ensureCapacity(4);
+            buffer.putInt(x);
         } else {
             len += 4;
         }
     }
 
-    private void writeInt32(int x, DataOutputStream out) {
-        try {
-            for(int i = 0; i < 4; i++) {
-                out.write(x >> (i * 8));
-            }
-        } catch(Exception e) {
-            FileLog.e("tmessages", "write int32 error");
-        }
-    }
-
     public void writeInt64(long i) {
         if (!justCalc) {
-            writeInt64(i, out);
+            ensureCapacity(8);
+            buffer.putLong(i);
         } else {
             len += 8;
         }
     }
 
-    private void writeInt64(long x, DataOutputStream out) {
-        try {
-            for(int i = 0; i < 8; i++) {
-                out.write((int)(x >> (i * 8)));
-            }
-        } catch(Exception e) {
-            FileLog.e("tmessages", "write int64 error");
-        }
-    }
-
     public boolean readBool() {
         int consructor = readInt32();
         if (consructor == 0x997275b5) {
@@ -119,22 +122,30 @@ public class SerializedData extends AbsSerializedData {
         }
     }
 
-    public void writeByteBuffer(ByteBufferDesc buffer) {
+    public void writeByteBuffer(ByteBufferDesc b) {
+        int l = b.limit();
+        int i = l <= 253 ? 1 : 4;
+        int padding = 0;
+        while ((l + i + padding) % 4 != 0) {
+            padding++;
+        }
         if (!justCalc) {
-            //TODO ?
-        } else {
-            int l = buffer.limit();
+            ensureCapacity(i + l + padding);
             if (l <= 253) {
-                len += 1;
+                buffer.put((byte) l);
             } else {
-                len += 4;
+                buffer.put((byte) 254);
+                buffer.put((byte) l);
+                buffer.put((byte) (l >> 8));
+                buffer.put((byte) (l >> 16));
             }
-            len += l;
-            int i = l <= 253 ? 1 : 4;
-            while((l + i) % 4 != 0) {
-                len += 1;
-                i++;
+            b.rewind();
+            buffer.put(b.buffer);
+            for (int a = 0; a < padding; a++) {
+                buffer.put((byte) 0);
             }
+        } else {
+            len += i + l + padding;
         }
     }
 
@@ -144,10 +155,7 @@ public class SerializedData extends AbsSerializedData {
 
     public int readInt32(boolean[] error) {
         try {
-            int i = 0;
-            for(int j = 0; j < 4; j++) {
-                i |= (in.read() << (j * 8));
-            }
+            int i = buffer.getInt();
             if (error != null) {
                 error[0] = false;
             }
@@ -167,10 +175,7 @@ public class SerializedData extends AbsSerializedData {
 
     public long readInt64(boolean[] error) {
         try {
-            long i = 0;
-            for(int j = 0; j < 8; j++) {
-                i |= ((long)in.read() << (j * 8));
-            }
+            long i = buffer.getLong();
             if (error != null) {
                 error[0] = false;
             }
@@ -185,56 +190,39 @@ public class SerializedData extends AbsSerializedData {
     }
 
     public void writeRaw(byte[] b) {
-        try {
-            if (!justCalc) {
-                out.write(b);
-            } else {
-                len += b.length;
-            }
-        } catch (Exception x) {
-            FileLog.e("tmessages", "write raw error");
+        if (!justCalc) {
+            ensureCapacity(b.length);
+            buffer.put(b);
+        } else {
+            len += b.length;
         }
     }
 
     public void writeRaw(byte[] b, int offset, int count) {
-        try {
-            if (!justCalc) {
-                out.write(b, offset, count);
-            } else {
-                len += count;
-            }
-        } catch (Exception x) {
-            FileLog.e("tmessages", "write raw error");
+        if (!justCalc) {
+            ensureCapacity(count);
+            buffer.put(b, offset, count);
+        } else {
+            len += count;
         }
     }
 
     public void writeByte(int i) {
-        try {
-            if (!justCalc) {
-                out.writeByte((byte)i);
-            } else {
-                len += 1;
-            }
-        } catch (Exception e) {
-            FileLog.e("tmessages", "write byte error");
-        }
+        writeByte((byte)i);
     }
 
     public void writeByte(byte b) {
-        try {
-            if (!justCalc) {
-                out.writeByte(b);
-            } else {
-                len += 1;
-            }
-        } catch (Exception e) {
-            FileLog.e("tmessages", "write byte error");
+        if (!justCalc) {
+            ensureCapacity(1);
+            buffer.put(b);
+        } else {
+            len += 1;
         }
     }
 
     public void readRaw(byte[] b) {
         try {
-            in.read(b);
+            buffer.get(b);
         } catch (Exception x) {
             FileLog.e("tmessages", "read raw error");
         }
@@ -246,22 +234,34 @@ public class SerializedData extends AbsSerializedData {
         return arr;
     }
 
+    private int readLength() {
+        int l = buffer.get() & 0xff;
+        lengthHeaderSize = 1;
+        if (l >= 254) {
+            l = (buffer.get() & 0xff) | ((buffer.get() & 0xff) << 8) | ((buffer.get() & 0xff) << 16);
+            lengthHeaderSize = 4;
+        }
+        return l;
+    }
+
+    private void skipPadding(int l) {
+        buffer.position(buffer.position() + (4 - (l + lengthHeaderSize) % 4) % 4);
+    }
+
     public String readString() {
         try {
-            int sl = 1;
-            int l = in.read();
-            if(l >= 254) {
-                l = in.read() | (in.read() << 8) | (in.read() << 16);
-                sl = 4;
-            }
-            byte[] b = new byte[l];
-            in.read(b);
-            int i=sl;
-            while((l + i) % 4 != 0) {
-                in.read();
-                i++;
+            int l = readLength();
+            String result;
+            if (buffer.hasArray()) {
+                result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), l, "UTF-8");
+                buffer.position(buffer.position() + l);
+            } else {
+                byte[] b = new byte[l];
+                buffer.get(b);
+                result = new String(b, "UTF-8");
             }
-            return new String(b, "UTF-8");
+            skipPadding(l);
+            return result;
         } catch (Exception x) {
             FileLog.e("tmessages", "read string error");
         }
@@ -270,19 +270,10 @@ public class SerializedData extends AbsSerializedData {
 
     public byte[] readByteArray() {
         try {
-            int sl = 1;
-            int l = in.read();
-            if (l >= 254) {
-                l = in.read() | (in.read() << 8) | (in.read() << 16);
-                sl = 4;
-            }
+            int l = readLength();
             byte[] b = new byte[l];
-            in.read(b);
-            int i = sl;
-            while((l + i) % 4 != 0) {
-                in.read();
-                i++;
-            }
+            buffer.get(b);
+            skipPadding(l);
             return b;
         } catch (Exception x) {
             FileLog.e("tmessages", "read byte array error");
@@ -291,44 +282,26 @@ public class SerializedData extends AbsSerializedData {
     }
 
     public ByteBufferDesc readByteBuffer() {
-        throw new RuntimeException("SerializedData don't support readByteBuffer");
-    }
-
-    public void writeByteArray(byte[] b) {
         try {
-            if (b.length <= 253) {
-                if (!justCalc) {
-                    out.write(b.length);
-                } else {
-                    len += 1;
-                }
-            } else {
-                if (!justCalc) {
-                    out.write(254);
-                    out.write(b.length);
-                    out.write(b.length >> 8);
-                    out.write(b.length >> 16);
-                } else {
-                    len += 4;
-                }
-            }
-            if (!justCalc) {
-                out.write(b);
-            } else {
-                len += b.length;
-            }
-            int i = b.length <= 253 ? 1 : 4;
-            while((b.length + i) % 4 != 0) {
-                if (!justCalc) {
-                    out.write(0);
-                } else {
-                    len += 1;
-                }
-                i++;
+            int l = readLength();
+            ByteBufferDesc b = BuffersStorage.getInstance().getFreeBuffer(l);
+            if (b != null) {
+                int old = buffer.limit();
+                buffer.limit(buffer.position() + l);
+                b.buffer.put(buffer);
+                buffer.limit(old);
+                b.buffer.position(0);
             }
+            skipPadding(l);
+            return b;
         } catch (Exception x) {
-            FileLog.e("tmessages", "write byte array error");
+            FileLog.e("tmessages", "read byte array error");
         }
+        return null;
+    }
+
+    public void writeByteArray(byte[] b) {
+        writeByteArray(b, 0, b.length);
     }
 
     public void writeString(String s) {
@@ -340,39 +313,27 @@ public class SerializedData extends AbsSerializedData {
     }
 
     public void writeByteArray(byte[] b, int offset, int count) {
-        try {
-            if(count <= 253) {
-                if (!justCalc) {
-                    out.write(count);
-                } else {
-                    len += 1;
-                }
-            } else {
-                if (!justCalc) {
-                    out.write(254);
-                    out.write(count);
-                    out.write(count >> 8);
-                    out.write(count >> 16);
-                } else {
-                    len += 4;
-                }
-            }
-            if (!justCalc) {
-                out.write(b, offset, count);
+        int i = count <= 253 ? 1 : 4;
+        int padding = 0;
+        while ((count + i + padding) % 4 != 0) {
+            padding++;
+        }
+        if (!justCalc) {
+            ensureCapacity(i + count + padding);
+            if (count <= 253) {
+                buffer.put((byte) count);
             } else {
-                len += count;
+                buffer.put((byte) 254);
+                buffer.put((byte) count);
+                buffer.put((byte) (count >> 8));
+                buffer.put((byte) (count >> 16));
             }
-            int i = count <= 253 ? 1 : 4;
-            while ((count + i) % 4 != 0) {
-                if (!justCalc) {
-                    out.write(0);
-                } else {
-                    len += 1;
-                }
-                i++;
+            buffer.put(b, offset, count);
+            for (int a = 0; a < padding; a++) {
+                buffer.put((byte) 0);
             }
-        } catch (Exception x) {
-            FileLog.e("tmessages", "write byte array error");
+        } else {
+            len += i + count + padding;
         }
     }
 
@@ -395,18 +356,57 @@ public class SerializedData extends AbsSerializedData {
 
     public int length() {
         if (!justCalc) {
-            return isOut ? outbuf.size() : inbuf.available();
+            return isOut ? buffer.position() : buffer.remaining();
         }
         return len;
     }
 
     protected void set(byte[] newData) {
         isOut = false;
-        inbuf = new ByteArrayInputStream(newData);
-        in = new DataInputStream(inbuf);
+        buffer = ByteBuffer.wrap(newData);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Drops written data but keeps the allocated capacity, so one instance can be reused
+     * for many short writes.
+     */
+    public void reset() {
+        if (buffer == null || !isOut) {
+            buffer = allocate(64);
+        }
+        isOut = true;
+        len = 0;
+        buffer.clear();
+    }
+
+    /**
+     * Returns the backing array without copying it. Only the first {@link #length()} bytes are
+     * valid, the array can be replaced by the next write that doesn't fit.
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Returns a view of the written bytes that shares memory with this stream.
+     */
+    public ByteBuffer byteBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        view.order(ByteOrder.LITTLE_ENDIAN);
+        return view;
     }
 
     public byte[] toByteArray() {
-        return outbuf.toByteArray();
+        byte[] result = new byte[buffer.position()];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset(), result, 0, result.length);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.flip();
+            view.get(result);
+        }
+        return result;
     }
 }
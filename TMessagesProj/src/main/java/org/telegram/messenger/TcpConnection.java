@@ -12,9 +12,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jawnae.pyronet.PyroClient;
 import jawnae.pyronet.PyroSelector;
@@ -35,7 +38,38 @@ public class TcpConnection extends ConnectionContext {
         public abstract void tcpConnectionReceivedData(TcpConnection connection, ByteBufferDesc data, int length);
     }
 
-    private static PyroSelector selector;
+    public static final int SELECTOR_SHARDING_NONE = 0;
+    public static final int SELECTOR_SHARDING_REQUEST_CLASS = 1;
+    public static final int SELECTOR_SHARDING_DATACENTER = 2;
+
+    /**
+     * How connections are spread over network threads. With SELECTOR_SHARDING_REQUEST_CLASS
+     * generic and push connections share one thread and downloads and uploads get their own,
+     * so bulk transfers don't delay chat RPCs. Only affects connections that didn't pick
+     * a selector yet.
+     */
+    public static volatile int selectorSharding = SELECTOR_SHARDING_REQUEST_CLASS;
+
+    private static final HashMap<Integer, PyroSelector> selectors = new HashMap<Integer, PyroSelector>();
+    private volatile PyroSelector selector;
+
+    private static class OutgoingPacket {
+        public ByteBufferDesc buffer;
+        public boolean canReuse;
+        public boolean reportAck;
+    }
+
+    //packets queued by sendData are framed into one buffer and written by a single task per burst
+    private static final int MAX_BATCH_SIZE = BuffersStorage.SIZE_CLASSES[BuffersStorage.SIZE_CLASSES.length - 1];
+    private final ConcurrentLinkedQueue<OutgoingPacket> outgoingPackets = new ConcurrentLinkedQueue<OutgoingPacket>();
+    private final AtomicBoolean outgoingFlushScheduled = new AtomicBoolean(false);
+    private final ArrayList<OutgoingPacket> drainedPackets = new ArrayList<OutgoingPacket>();
+    private final Runnable flushOutgoingPacketsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushOutgoingPackets();
+        }
+    };
     private PyroClient client;
     public TcpConnectionState connectionState;
     public volatile int channelToken = 0;
@@ -44,32 +78,74 @@ public class TcpConnection extends ConnectionContext {
     private int datacenterId;
     private int failedConnectionCount;
     public TcpConnectionDelegate delegate;
-    private ByteBufferDesc restOfTheData;
     private boolean hasSomeDataSinceLastConnect = false;
     private int willRetryConnectCount = 5;
     private boolean isNextPort = false;
     private final Integer timerSync = 1;
     private boolean wasConnected;
-    private int lastPacketLength;
 
     public int transportRequestClass;
+    //index in the datacenter's download or upload connection pool
+    public int connectionNum;
+    public final ContainerPacker containerPacker = new ContainerPacker();
 
     private boolean firstPacket;
 
+    private final AbridgedFrameDecoder frameDecoder = new AbridgedFrameDecoder(new AbridgedFrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame, int length) {
+            processFrame(frame, length);
+        }
+
+        @Override
+        public void onQuickAck(int ackId) {
+            processQuickAck(ackId);
+        }
+    });
+
     private Timer reconnectTimer;
 
     public TcpConnection(int did) {
-        if (selector == null) {
-            selector = new PyroSelector();
-            selector.spawnNetworkThread("network thread");
-            BuffersStorage storage = BuffersStorage.getInstance();
-        }
         datacenterId = did;
         connectionState = TcpConnectionState.TcpConnectionStageIdle;
     }
 
+    private PyroSelector getSelector() {
+        PyroSelector localSelector = selector;
+        if (localSelector == null) {
+            int sharding = selectorSharding;
+            int shard = 0;
+            String name = "network thread";
+            if (sharding == SELECTOR_SHARDING_REQUEST_CLASS) {
+                if ((transportRequestClass & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                    shard = 1;
+                    name = "network thread download";
+                } else if ((transportRequestClass & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                    shard = 2;
+                    name = "network thread upload";
+                }
+            } else if (sharding == SELECTOR_SHARDING_DATACENTER) {
+                shard = datacenterId;
+                name = "network thread dc" + datacenterId;
+            }
+            synchronized (selectors) {
+                //shards of different modes must not share a thread when the mode changes
+                int key = sharding << 16 | shard;
+                localSelector = selectors.get(key);
+                if (localSelector == null) {
+                    localSelector = new PyroSelector();
+                    localSelector.spawnNetworkThread(name);
+                    selectors.put(key, localSelector);
+                    BuffersStorage storage = BuffersStorage.getInstance();
+                }
+                selector = localSelector;
+            }
+        }
+        return localSelector;
+    }
+
     static volatile Integer nextChannelToken = 1;
-    static int generateChannelToken() {
+    static synchronized int generateChannelToken() {
         return nextChannelToken++;
     }
 
@@ -91,7 +167,7 @@ public class TcpConnection extends ConnectionContext {
             return;
         }
 
-        selector.scheduleTask(new Runnable() {
+        getSelector().scheduleTask(new Runnable() {
             @Override
             public void run() {
                 if ((connectionState == TcpConnectionState.TcpConnectionStageConnected || connectionState == TcpConnectionState.TcpConnectionStageConnecting) && client != null) {
@@ -117,11 +193,8 @@ public class TcpConnection extends ConnectionContext {
 
                     FileLog.d("tmessages", String.format(TcpConnection.this + " Connecting (%s:%d)", hostAddress, hostPort));
                     firstPacket = true;
-                    if (restOfTheData != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                        restOfTheData = null;
-                    }
-                    lastPacketLength = 0;
+                    frameDecoder.reset();
+                    containerPacker.reset();
                     wasConnected = false;
                     hasSomeDataSinceLastConnect = false;
                     if (client != null) {
@@ -129,7 +202,7 @@ public class TcpConnection extends ConnectionContext {
                         client.dropConnection();
                         client = null;
                     }
-                    client = selector.connect(new InetSocketAddress(hostAddress, hostPort));
+                    client = getSelector().connect(new InetSocketAddress(hostAddress, hostPort));
                     client.addListener(TcpConnection.this);
                     if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
                         if (isNextPort) {
@@ -144,7 +217,7 @@ public class TcpConnection extends ConnectionContext {
                             client.setTimeout(15000);
                         }
                     }
-                    selector.wakeup();
+                    getSelector().wakeup();
                 } catch (Exception e) {
                     handleConnectionError(e);
                 }
@@ -200,7 +273,7 @@ public class TcpConnection extends ConnectionContext {
             reconnectTimer.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    selector.scheduleTask(new Runnable() {
+                    getSelector().scheduleTask(new Runnable() {
                         @Override
                         public void run() {
                             try {
@@ -250,18 +323,15 @@ public class TcpConnection extends ConnectionContext {
             });
         }
         firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
-        lastPacketLength = 0;
+        frameDecoder.reset();
+        containerPacker.reset();
         channelToken = 0;
         wasConnected = false;
     }
 
     public void suspendConnection(boolean task) {
         if (task) {
-            selector.scheduleTask(new Runnable() {
+            getSelector().scheduleTask(new Runnable() {
                 @Override
                 public void run() {
                     suspendConnectionInternal();
@@ -286,264 +356,159 @@ public class TcpConnection extends ConnectionContext {
         if (buff == null) {
             return;
         }
-        selector.scheduleTask(new Runnable() {
-            @Override
-            public void run() {
-                if (connectionState == TcpConnectionState.TcpConnectionStageIdle ||
-                        connectionState == TcpConnectionState.TcpConnectionStageReconnecting ||
-                        connectionState == TcpConnectionState.TcpConnectionStageSuspended || client == null) {
-                    connect();
-                }
+        OutgoingPacket packet = new OutgoingPacket();
+        packet.buffer = buff;
+        packet.canReuse = canReuse;
+        packet.reportAck = reportAck;
+        outgoingPackets.add(packet);
+        if (outgoingFlushScheduled.compareAndSet(false, true)) {
+            getSelector().scheduleTask(flushOutgoingPacketsRunnable);
+        }
+    }
 
-                if (client == null || client.isDisconnected()) {
-                    if (canReuse) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(buff);
-                    }
-                    return;
-                }
+    private int getFramedLength(OutgoingPacket packet, boolean first) {
+        int bufferLen = packet.buffer.limit();
+        int packetLength = bufferLen / 4;
+        if (packetLength < 0x7f) {
+            bufferLen++;
+        } else {
+            bufferLen += 4;
+        }
+        if (first) {
+            bufferLen++;
+        }
+        return bufferLen;
+    }
+
+    private void flushOutgoingPackets() {
+        outgoingFlushScheduled.set(false);
+        OutgoingPacket packet;
+        while ((packet = outgoingPackets.poll()) != null) {
+            drainedPackets.add(packet);
+        }
+        if (drainedPackets.isEmpty()) {
+            return;
+        }
 
-                int bufferLen = buff.limit();
-                int packetLength = bufferLen / 4;
+        if (connectionState == TcpConnectionState.TcpConnectionStageIdle ||
+                connectionState == TcpConnectionState.TcpConnectionStageReconnecting ||
+                connectionState == TcpConnectionState.TcpConnectionStageSuspended || client == null) {
+            connect();
+        }
 
-                if (packetLength < 0x7f) {
-                    bufferLen++;
-                } else {
-                    bufferLen += 4;
+        if (client == null || client.isDisconnected()) {
+            for (OutgoingPacket outgoingPacket : drainedPackets) {
+                if (outgoingPacket.canReuse) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(outgoingPacket.buffer);
                 }
-                if (firstPacket) {
-                    bufferLen++;
+            }
+            drainedPackets.clear();
+            return;
+        }
+
+        int start = 0;
+        while (start < drainedPackets.size()) {
+            int totalLength = 0;
+            int end = start;
+            boolean first = firstPacket;
+            while (end < drainedPackets.size()) {
+                int length = getFramedLength(drainedPackets.get(end), first);
+                if (end != start && totalLength + length > MAX_BATCH_SIZE) {
+                    break;
                 }
+                first = false;
+                totalLength += length;
+                end++;
+            }
+
+            ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(totalLength);
+            for (int a = start; a < end; a++) {
+                OutgoingPacket outgoingPacket = drainedPackets.get(a);
+                ByteBufferDesc buff = outgoingPacket.buffer;
+                int packetLength = buff.limit() / 4;
 
-                ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(bufferLen);
                 if (firstPacket) {
                     buffer.writeByte((byte)0xef);
                     firstPacket = false;
                 }
                 if (packetLength < 0x7f) {
-                    if (reportAck) {
+                    if (outgoingPacket.reportAck) {
                         packetLength |= (1 << 7);
                     }
                     buffer.writeByte(packetLength);
                 } else {
                     packetLength = (packetLength << 8) + 0x7f;
-                    if (reportAck) {
+                    if (outgoingPacket.reportAck) {
                         packetLength |= (1 << 7);
                     }
                     buffer.writeInt32(packetLength);
                 }
 
                 buffer.writeRaw(buff);
-                if (canReuse) {
+                if (outgoingPacket.canReuse) {
                     BuffersStorage.getInstance().reuseFreeBuffer(buff);
                 }
-
-                buffer.rewind();
-
-                client.write(buffer);
             }
-        });
+
+            buffer.rewind();
+            containerPacker.onWrite(totalLength);
+            client.write(buffer);
+            start = end;
+        }
+        drainedPackets.clear();
     }
 
     private void readData(ByteBuffer buffer) throws Exception {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
         buffer.rewind();
 
-        ByteBuffer parseLaterBuffer = null;
-        if (restOfTheData != null) {
-            if (lastPacketLength == 0) {
-                //FileLog.e("tmessages", this +  " write addition data to restOfTheData");
-                if (restOfTheData.capacity() - restOfTheData.position() >= buffer.limit()) {
-                    restOfTheData.limit(restOfTheData.position() + buffer.limit());
-                    restOfTheData.put(buffer);
-                    buffer = restOfTheData.buffer;
-                    //FileLog.e("tmessages", this +  " no need to recreate buffer");
-                } else {
-                    ByteBufferDesc newBuffer = BuffersStorage.getInstance().getFreeBuffer(restOfTheData.limit() + buffer.limit());
-                    restOfTheData.rewind();
-                    newBuffer.put(restOfTheData.buffer);
-                    newBuffer.put(buffer);
-                    buffer = newBuffer.buffer;
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = newBuffer;
-                    //FileLog.e("tmessages", this +  " NEED to recreate buffer");
-                }
+        if (buffer.hasRemaining() && !hasSomeDataSinceLastConnect) {
+            Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+            datacenter.storeCurrentAddressAndPortNum();
+            isNextPort = false;
+            if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
+                client.setTimeout(60000 * 15);
             } else {
-                //FileLog.e("tmessages", this +  " write buffer to restOfTheData buffer of len = " + lastPacketLength);
-                int len = 0;
-                if (lastPacketLength - restOfTheData.position() <= buffer.limit()) {
-                    len = lastPacketLength - restOfTheData.position();
-                    //FileLog.e("tmessages", this +  " received buffer - OK!");
-                } else {
-                    len = buffer.limit();
-                    //FileLog.e("tmessages", this +  " received buffer less than need");
-                }
-                int oldLimit = buffer.limit();
-                buffer.limit(len);
-                restOfTheData.put(buffer);
-                buffer.limit(oldLimit);
-                if (restOfTheData.position() != lastPacketLength) {
-                    //FileLog.e("tmessages", this +  " don't get much data to restOfTheData");
-                    return;
-                } else {
-                    //FileLog.e("tmessages", this +  " get much data to restOfTheData - OK!");
-                    if (buffer.hasRemaining()) {
-                        parseLaterBuffer = buffer;
-                        //FileLog.e("tmessages", this +  " something remain in the received buffer");
-                    } else {
-                        parseLaterBuffer = null;
-                    }
-                    buffer = restOfTheData.buffer;
-                }
-            }
-        }
-
-        buffer.rewind();
-
-        while (buffer.hasRemaining()) {
-            if (!hasSomeDataSinceLastConnect) {
-                Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
-                datacenter.storeCurrentAddressAndPortNum();
-                isNextPort = false;
-                if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
-                    client.setTimeout(60000 * 15);
-                } else {
-                    client.setTimeout(25000);
-                }
+                client.setTimeout(25000);
             }
             hasSomeDataSinceLastConnect = true;
+        }
 
-            int currentPacketLength;
-            buffer.mark();
-            byte fByte = buffer.get();
-
-            if ((fByte & (1 << 7)) != 0) {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    ByteBufferDesc reuseLater = restOfTheData;
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                    restOfTheData.put(buffer);
-                    restOfTheData.limit(restOfTheData.position());
-                    lastPacketLength = 0;
-                    //FileLog.e("tmessages", this +  " 1 - size less than 4 bytes - write to free buffer");
-                    if (reuseLater != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                        //FileLog.e("tmessages", this +  " 1 - reuse later buffer1");
-                    }
-                    break;
-                }
-                buffer.order(ByteOrder.BIG_ENDIAN);
-                final int ackId = buffer.getInt() & (~(1 << 31));
-                if (delegate != null) {
-                    final TcpConnectionDelegate finalDelegate = delegate;
-                    Utilities.stageQueue.postRunnable(new Runnable() {
-                        @Override
-                        public void run() {
-                            finalDelegate.tcpConnectionQuiackAckReceived(TcpConnection.this, ackId);
-                        }
-                    });
-                }
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                continue;
-            }
-
-            if (fByte != 0x7f) {
-                currentPacketLength = ((int)fByte) * 4;
-            } else {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    //FileLog.e("tmessages", this +  " 2 - size less than 4 bytes - write to free buffer");
-                    if (restOfTheData == null || restOfTheData != null && restOfTheData.position() != 0) {
-                        ByteBufferDesc reuseLater = restOfTheData;
-                        restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                        restOfTheData.put(buffer);
-                        restOfTheData.limit(restOfTheData.position());
-                        lastPacketLength = 0;
-                        if (reuseLater != null) {
-                            BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                            //FileLog.e("tmessages", this +  " 2 - reuse later buffer1");
-                        }
-                    } else {
-                        restOfTheData.position(restOfTheData.limit());
-                    }
-                    break;
-                }
-                currentPacketLength = (buffer.getInt() >> 8) * 4;
-            }
+        if (!frameDecoder.decode(buffer)) {
+            FileLog.e("tmessages", "Invalid packet length");
+            reconnect();
+        }
+    }
 
-            if (currentPacketLength % 4 != 0 || currentPacketLength > 2 * 1024 * 1024) {
-                FileLog.e("tmessages", "Invalid packet length");
-                reconnect();
-                return;
-            }
+    private void processFrame(ByteBuffer frame, int length) {
+        FileLog.d("tmessages", TcpConnection.this + " Received message len " + length);
+        final int finalLength = length;
+        final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(length);
+        toProceed.buffer.put(frame);
+        toProceed.rewind();
 
-            if (currentPacketLength < buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " but packet larger " + buffer.remaining());
-            } else if (currentPacketLength == buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " equal to packet size");
-            } else {
-                FileLog.d("tmessages", TcpConnection.this + " Received packet size less(" + buffer.remaining() + ") then message size(" + currentPacketLength + ")");
-
-                ByteBufferDesc reuseLater = null;
-                int len = currentPacketLength + (fByte != 0x7f ? 1 : 4);
-                if (restOfTheData != null && restOfTheData.capacity() < len) {
-                    reuseLater = restOfTheData;
-                    restOfTheData = null;
-                    //FileLog.e("tmessages", this +  " not enough space for len, recreate buffer = " + len);
-                }
-                if (restOfTheData == null) {
-                    //FileLog.e("tmessages", this +  " write to restOfTheData, get buffer len = " + len);
-                    buffer.reset();
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(len);
-                    restOfTheData.put(buffer);
-                } else {
-                    restOfTheData.position(restOfTheData.limit());
-                    restOfTheData.limit(len);
-                }
-                lastPacketLength = len;
-                if (reuseLater != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                    //FileLog.e("tmessages", this +  " 3 - reuse later buffer1");
+        if (delegate != null) {
+            final TcpConnectionDelegate finalDelegate = delegate;
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    finalDelegate.tcpConnectionReceivedData(TcpConnection.this, toProceed, finalLength);
+                    BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
                 }
-                return;
-            }
-
-            final int length = currentPacketLength;
-            final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
-            int old = buffer.limit();
-            buffer.limit(buffer.position() + currentPacketLength);
-            toProceed.put(buffer);
-            buffer.limit(old);
-            toProceed.rewind();
-
-            if (delegate != null) {
-                final TcpConnectionDelegate finalDelegate = delegate;
-                Utilities.stageQueue.postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        finalDelegate.tcpConnectionReceivedData(TcpConnection.this, toProceed, length);
-                        BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
-                    }
-                });
-            }
+            });
+        } else {
+            BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
+        }
+    }
 
-            if (restOfTheData != null) {
-                if (lastPacketLength != 0 && restOfTheData.position() == lastPacketLength || lastPacketLength == 0 && !restOfTheData.hasRemaining()) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = null;
-                    //FileLog.e("tmessages", this +  " restOfTheData parsed null it");
-                } else {
-                    restOfTheData.compact();
-                    restOfTheData.limit(restOfTheData.position());
-                    restOfTheData.position(0);
-                    //FileLog.e("tmessages", this +  " restOfTheData NOT parsed, compact");
+    private void processQuickAck(final int ackId) {
+        if (delegate != null) {
+            final TcpConnectionDelegate finalDelegate = delegate;
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    finalDelegate.tcpConnectionQuiackAckReceived(TcpConnection.this, ackId);
                 }
-            }
-
-            if (parseLaterBuffer != null) {
-                //FileLog.e("tmessages", this +  " there is parseLaterBuffer");
-                buffer = parseLaterBuffer;
-                parseLaterBuffer = null;
-            }
+            });
         }
     }
 
@@ -561,12 +526,9 @@ public class TcpConnection extends ConnectionContext {
         }
         boolean switchToNextPort = wasConnected && !hasSomeDataSinceLastConnect && timedout;
         firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
+        frameDecoder.reset();
+        containerPacker.reset();
         channelToken = 0;
-        lastPacketLength = 0;
         wasConnected = false;
         if (connectionState != TcpConnectionState.TcpConnectionStageSuspended && connectionState != TcpConnectionState.TcpConnectionStageIdle) {
             connectionState = TcpConnectionState.TcpConnectionStageIdle;
@@ -605,7 +567,7 @@ public class TcpConnection extends ConnectionContext {
                     reconnectTimer.schedule(new TimerTask() {
                         @Override
                         public void run() {
-                            selector.scheduleTask(new Runnable() {
+                            getSelector().scheduleTask(new Runnable() {
                                 @Override
                                 public void run() {
                                     try {
@@ -676,5 +638,6 @@ public class TcpConnection extends ConnectionContext {
 
     @Override
     public void sentData(PyroClient client, int bytes) {
+        containerPacker.onSent(bytes);
     }
 }
@@ -50,6 +50,7 @@ import java.security.SecureRandom;
 import java.security.spec.RSAPublicKeySpec;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 import java.util.regex.Matcher;
@@ -135,7 +136,87 @@ public class Utilities {
     private native static void aesIgeEncryption(ByteBuffer buffer, byte[] key, byte[] iv, boolean encrypt, int offset, int length);
 
     public static void aesIgeEncryption(ByteBuffer buffer, byte[] key, byte[] iv, boolean encrypt, boolean changeIv, int offset, int length) {
-        aesIgeEncryption(buffer, key, changeIv ? iv : iv.clone(), encrypt, offset, length);
+        if (AesIge.getImplementation() == AesIge.IMPLEMENTATION_JAVA || !buffer.isDirect()) {
+            AesIge.aesIgeEncryption(buffer, key, iv, encrypt, changeIv, offset, length);
+            return;
+        }
+        try {
+            aesIgeEncryption(buffer, key, changeIv ? iv : iv.clone(), encrypt, offset, length);
+        } catch (UnsatisfiedLinkError e) {
+            FileLog.e("tmessages", "native aes is not available, switching to java");
+            AesIge.setImplementation(AesIge.IMPLEMENTATION_JAVA);
+            AesIge.aesIgeEncryption(buffer, key, iv, encrypt, changeIv, offset, length);
+        }
+    }
+
+    /**
+     * Uses the AES-IGE implementation that is faster on this device. It is measured once per app
+     * version and kept in mainconfig, the measurement takes a moment, so call it on a background
+     * queue.
+     */
+    public static void selectAesImplementation() {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        int version = ApplicationLoader.getAppVersion();
+        if (preferences.contains("aes_implementation") && preferences.getInt("aes_implementation_version", 0) == version) {
+            AesIge.setImplementation(preferences.getInt("aes_implementation", AesIge.IMPLEMENTATION_NATIVE));
+            return;
+        }
+        int implementation = measureAesImplementations();
+        AesIge.setImplementation(implementation);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt("aes_implementation", implementation);
+        editor.putInt("aes_implementation_version", version);
+        editor.commit();
+    }
+
+    private static int measureAesImplementations() {
+        try {
+            int size = 16 * 1024;
+            ByteBuffer nativeBuffer = ByteBuffer.allocateDirect(size);
+            ByteBuffer javaBuffer = ByteBuffer.allocateDirect(size);
+            byte[] data = new byte[size];
+            byte[] key = new byte[32];
+            byte[] iv = new byte[32];
+            random.nextBytes(data);
+            random.nextBytes(key);
+            random.nextBytes(iv);
+            nativeBuffer.put(data);
+            javaBuffer.put(data);
+            byte[] nativeIv = iv.clone();
+            byte[] javaIv = iv.clone();
+            aesIgeEncryption(nativeBuffer, key, nativeIv, true, 0, size);
+            AesIge.aesIgeEncryption(javaBuffer, key, javaIv, true, true, 0, size);
+            nativeBuffer.clear();
+            javaBuffer.clear();
+            if (!nativeBuffer.equals(javaBuffer) || !Arrays.equals(nativeIv, javaIv)) {
+                FileLog.e("tmessages", "aes implementations differ, using native");
+                return AesIge.IMPLEMENTATION_NATIVE;
+            }
+            //the java one starts out interpreted, give the jit a chance before timing
+            for (int a = 0; a < 64; a++) {
+                AesIge.aesIgeEncryption(javaBuffer, key, iv, true, false, 0, size);
+                aesIgeEncryption(nativeBuffer, key, iv.clone(), true, 0, size);
+            }
+            long nativeTime = Long.MAX_VALUE;
+            long javaTime = Long.MAX_VALUE;
+            for (int a = 0; a < 16; a++) {
+                long time = System.nanoTime();
+                aesIgeEncryption(nativeBuffer, key, iv.clone(), true, 0, size);
+                nativeTime = Math.min(nativeTime, System.nanoTime() - time);
+                time = System.nanoTime();
+                AesIge.aesIgeEncryption(javaBuffer, key, iv, true, false, 0, size);
+                javaTime = Math.min(javaTime, System.nanoTime() - time);
+            }
+            int implementation = javaTime < nativeTime ? AesIge.IMPLEMENTATION_JAVA : AesIge.IMPLEMENTATION_NATIVE;
+            FileLog.d("tmessages", "aes native = " + nativeTime / 1000 + " us, java = " + javaTime / 1000 + " us per 16 KB, using " + (implementation == AesIge.IMPLEMENTATION_JAVA ? "java" : "native"));
+            return implementation;
+        } catch (UnsatisfiedLinkError e) {
+            FileLog.e("tmessages", e);
+            return AesIge.IMPLEMENTATION_JAVA;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return AesIge.IMPLEMENTATION_NATIVE;
+        }
     }
 
     public static Integer parseInt(String value) {
@@ -347,50 +428,7 @@ public class Utilities {
     }
 
     public static MessageKeyData generateMessageKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
-        MessageKeyData keyData = new MessageKeyData();
-        if (authKey == null || authKey.length == 0) {
-            keyData.aesIv = null;
-            keyData.aesKey = null;
-            return keyData;
-        }
-
-        int x = incoming ? 8 : 0;
-
-        SerializedData data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, x, 32);
-        byte[] sha1_a = Utilities.computeSHA1(data.toByteArray());
-
-        data = new SerializedData();
-        data.writeRaw(authKey, 32 + x, 16);
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 48 + x, 16);
-        byte[] sha1_b = Utilities.computeSHA1(data.toByteArray());
-
-        data = new SerializedData();
-        data.writeRaw(authKey, 64 + x, 32);
-        data.writeRaw(messageKey);
-        byte[] sha1_c = Utilities.computeSHA1(data.toByteArray());
-
-        data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 96 + x, 32);
-        byte[] sha1_d = Utilities.computeSHA1(data.toByteArray());
-
-        SerializedData aesKey = new SerializedData();
-        aesKey.writeRaw(sha1_a, 0, 8);
-        aesKey.writeRaw(sha1_b, 8, 12);
-        aesKey.writeRaw(sha1_c, 4, 12);
-        keyData.aesKey = aesKey.toByteArray();
-
-        SerializedData aesIv = new SerializedData();
-        aesIv.writeRaw(sha1_a, 8, 12);
-        aesIv.writeRaw(sha1_b, 0, 8);
-        aesIv.writeRaw(sha1_c, 16, 4);
-        aesIv.writeRaw(sha1_d, 0, 8);
-        keyData.aesIv = aesIv.toByteArray();
-
-        return keyData;
+        return MessageKeyData.generateMessageKeyData(authKey, messageKey, incoming);
     }
 
     public static TLObject decompress(byte[] data, TLObject parentObject) {
@@ -399,15 +437,21 @@ public class Utilities {
         GZIPInputStream gis;
         try {
             gis = new GZIPInputStream(is, BUFFER_SIZE);
-            ByteArrayOutputStream bytesOutput = new ByteArrayOutputStream();
-            data = new byte[BUFFER_SIZE];
+            byte[] output = new byte[Math.max(BUFFER_SIZE, data.length * 4)];
+            int length = 0;
             int bytesRead;
-            while ((bytesRead = gis.read(data)) != -1) {
-                bytesOutput.write(data, 0, bytesRead);
+            while ((bytesRead = gis.read(output, length, output.length - length)) != -1) {
+                length += bytesRead;
+                if (length == output.length) {
+                    byte[] newOutput = new byte[output.length * 2];
+                    System.arraycopy(output, 0, newOutput, 0, length);
+                    output = newOutput;
+                }
             }
             gis.close();
             is.close();
-            SerializedData stream = new SerializedData(bytesOutput.toByteArray());
+            ByteBufferDesc stream = new ByteBufferDesc(output);
+            stream.limit(length);
             return TLClassStore.Instance().TLdeserialize(stream, stream.readInt32(), parentObject);
         } catch (IOException e) {
             FileLog.e("tmessages", e);
@@ -91,6 +91,13 @@ public class ApplicationLoader extends Application {
             FileLog.e("tmessages", e);
         }
 
+        Utilities.globalQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                Utilities.selectAesImplementation();
+            }
+        });
+
         UserConfig.loadConfig();
         if (UserConfig.getCurrentUser() != null) {
             boolean changed = false;
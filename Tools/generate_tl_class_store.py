@@ -0,0 +1,72 @@
+#!/usr/bin/env python
+#
+# This is the source code of Telegram for Android v. 1.3.x.
+# It is licensed under GNU GPL v. 2 or later.
+# You should have received a copy of the license in this archive (see LICENSE).
+#
+# Regenerates the constructor switch of TLClassStore.createObject from the
+# constructor ids declared in TLRPC.java. Run it from the repository root
+# after adding or changing TL classes:
+#
+#   python Tools/generate_tl_class_store.py
+#
+
+import os
+import re
+import sys
+
+SOURCE_DIR = os.path.join('TMessagesProj', 'src', 'main', 'java', 'org', 'telegram', 'messenger')
+TLRPC_PATH = os.path.join(SOURCE_DIR, 'TLRPC.java')
+STORE_PATH = os.path.join(SOURCE_DIR, 'TLClassStore.java')
+
+BEGIN_MARKER = '//generated constructors begin'
+END_MARKER = '//generated constructors end'
+
+# wrappers that are only ever sent or parsed by hand, never looked up by constructor
+EXCLUDED = set(['invokeWithLayer14', 'initConnection', 'decryptedMessageLayer'])
+
+CLASS_RE = re.compile(r'^    public static class (\w+)', re.M)
+CONSTRUCTOR_RE = re.compile(r'public static int constructor = (0x[0-9a-fA-F]+);')
+
+
+def read_constructors(source):
+    starts = [m for m in CLASS_RE.finditer(source)]
+    result = []
+    used = {}
+    for index, match in enumerate(starts):
+        end = starts[index + 1].start() if index + 1 < len(starts) else len(source)
+        body = source[match.end():end]
+        constructor = CONSTRUCTOR_RE.search(body)
+        name = match.group(1)
+        if constructor is None or name in EXCLUDED:
+            continue
+        value = int(constructor.group(1), 16)
+        if value in used:
+            sys.stderr.write('constructor 0x%08x is declared by both %s and %s\n' % (value, used[value], name))
+            sys.exit(1)
+        used[value] = name
+        result.append((value, name))
+    return result
+
+
+def main():
+    source = open(TLRPC_PATH).read()
+    constructors = read_constructors(source)
+
+    lines = []
+    for value, name in constructors:
+        lines.append('            case 0x%08x:\n' % value)
+        lines.append('                return new TLRPC.%s();\n' % name)
+
+    store = open(STORE_PATH).read()
+    begin = store.index(BEGIN_MARKER)
+    begin = store.index('\n', begin) + 1
+    end = store.index(END_MARKER)
+    end = store.rindex('\n', 0, end) + 1
+    store = store[:begin] + ''.join(lines) + store[end:]
+    open(STORE_PATH, 'w').write(store)
+    print('%d constructors written to %s' % (len(constructors), STORE_PATH))
+
+
+if __name__ == '__main__':
+    main()